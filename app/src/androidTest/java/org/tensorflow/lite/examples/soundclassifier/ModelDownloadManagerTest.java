@@ -0,0 +1,333 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+/**
+ * Resume of interrupted downloads and model patches against a local server which supports Range requests. The
+ * patched target differs from its base by PATCH_LENGTH bytes in the middle.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ModelDownloadManagerTest {
+    private static final int SIZE = 256 * 1024;
+    private static final int PATCH_OFFSET = SIZE / 2;
+    private static final int PATCH_LENGTH = 1000;
+
+    private final byte[] data = new byte[SIZE];
+    private final byte[] baseData = new byte[SIZE];
+    private final RangeDispatcher dispatcher = new RangeDispatcher();
+    private MockWebServer server;
+    private Context context;
+    private File dir;
+    private File target;
+    private File base;
+
+    /**
+     * Serves data, answers Range requests with 206 and can drop the connection of full responses. /model.wbp serves
+     * the patch, 404 if there is none.
+     */
+    private class RangeDispatcher extends Dispatcher {
+        final List<String> ranges = new CopyOnWriteArrayList<>();
+        volatile boolean honorRange = true;
+        volatile int disconnects = 0;
+        volatile byte[] patch = null;
+        volatile int patchRequests = 0;
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if ("/model.wbp".equals(request.getPath())) {
+                patchRequests++;
+                byte[] patch = this.patch;
+                return patch == null ? new MockResponse().setResponseCode(404) : new MockResponse().setBody(new Buffer().write(patch));
+            }
+            if ("HEAD".equals(request.getMethod())) return new MockResponse().setHeader("Content-Length", data.length);
+            String range = request.getHeader("Range");
+            ranges.add(range == null ? "" : range);
+            if (range != null && honorRange) {
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                if (start >= data.length) return new MockResponse().setResponseCode(416);
+                return new MockResponse().setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + start + "-" + (data.length - 1) + "/" + data.length)
+                        .setBody(new Buffer().write(data, start, data.length - start));
+            }
+            MockResponse response = new MockResponse().setBody(new Buffer().write(data));
+            if (disconnects > 0) {
+                disconnects--;
+                response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+            }
+            return response;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(data);
+        System.arraycopy(data, 0, baseData, 0, SIZE);
+        byte[] changed = new byte[PATCH_LENGTH];
+        new Random(2).nextBytes(changed);
+        System.arraycopy(changed, 0, baseData, PATCH_OFFSET, PATCH_LENGTH);
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dir = new File(context.getCacheDir(), "download-test");
+        deleteDir();
+        assertTrue(dir.mkdirs());
+        target = new File(dir, "model.tflite");
+        base = new File(dir, "base.tflite");
+        ModelVerifier.invalidate(context, target);
+        ModelVerifier.invalidate(context, base);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        deleteDir();
+    }
+
+    @Test
+    public void resumesPartFile() throws Exception {
+        ModelDownloadManager.Download download = download();
+        writePart(download, SIZE / 3);
+
+        assertTrue(run(download));
+        assertEquals(Collections.singletonList("bytes=" + SIZE / 3 + "-"), dispatcher.ranges);
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertFalse(ModelDownloadManager.partFile(download).exists());
+    }
+
+    @Test
+    public void resumesAfterDisconnect() throws Exception {
+        dispatcher.disconnects = 1;
+
+        assertTrue(run(download()));
+        assertEquals(2, dispatcher.ranges.size());
+        assertEquals("", dispatcher.ranges.get(0));
+        assertTrue(dispatcher.ranges.get(1).startsWith("bytes="));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void restartsIfRangeIgnored() throws Exception {
+        dispatcher.honorRange = false;
+        ModelDownloadManager.Download download = download();
+        writePart(download, SIZE / 2);
+
+        assertTrue(run(download));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void completePartIsVerified() throws Exception {
+        ModelDownloadManager.Download download = download();
+        writePart(download, SIZE);
+
+        assertTrue(run(download));
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void corruptPartIsDeleted() throws Exception {
+        ModelDownloadManager.Download download = download();
+        writePart(download, SIZE / 2);
+        byte[] corrupt = Files.readAllBytes(ModelDownloadManager.partFile(download).toPath());
+        corrupt[0] ^= 1;
+        Files.write(ModelDownloadManager.partFile(download).toPath(), corrupt);
+
+        assertFalse(run(download));
+        assertFalse(target.exists());
+        assertFalse(ModelDownloadManager.partFile(download).exists());
+    }
+
+    @Test
+    public void patchBuildsTarget() throws Exception {
+        dispatcher.patch = patch(md5(baseData));
+        ModelDownloadManager.Download download = patchedDownload();
+
+        assertTrue(run(download));
+        assertEquals(1, dispatcher.patchRequests);
+        assertTrue(dispatcher.ranges.isEmpty());
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertEquals(md5(data), ModelVerifier.getVerifiedMd5(context, target));
+        assertFalse(patchPartFile().exists());
+    }
+
+    @Test
+    public void missingPatchDownloadsFullFile() throws Exception {
+        ModelDownloadManager.Download download = patchedDownload();
+
+        assertTrue(run(download));
+        assertEquals(1, dispatcher.patchRequests);
+        assertEquals(Collections.singletonList(""), dispatcher.ranges);
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertEquals(md5(data), ModelVerifier.getVerifiedMd5(context, target));
+    }
+
+    @Test
+    public void patchForOtherBaseDownloadsFullFile() throws Exception {
+        dispatcher.patch = patch(md5(data));
+        ModelDownloadManager.Download download = patchedDownload();
+
+        assertTrue(run(download));
+        assertEquals(Collections.singletonList(""), dispatcher.ranges);
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertFalse(patchPartFile().exists());
+    }
+
+    @Test
+    public void corruptPatchDownloadsFullFile() throws Exception {
+        byte[] patch = patch(md5(baseData));
+        patch[patch.length / 2] ^= 1;  // inserted bytes, the result has the wrong MD5
+        dispatcher.patch = patch;
+        ModelDownloadManager.Download download = patchedDownload();
+
+        assertTrue(run(download));
+        assertEquals(Collections.singletonList(""), dispatcher.ranges);
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertFalse(patchPartFile().exists());
+    }
+
+    @Test
+    public void truncatedPatchDownloadsFullFile() throws Exception {
+        byte[] patch = patch(md5(baseData));
+        dispatcher.patch = Arrays.copyOf(patch, patch.length / 2);
+        ModelDownloadManager.Download download = patchedDownload();
+
+        assertTrue(run(download));
+        assertEquals(Collections.singletonList(""), dispatcher.ranges);
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertFalse(patchPartFile().exists());
+    }
+
+    private ModelDownloadManager.Download download() {
+        return new ModelDownloadManager.Download(server.url("/model.tflite").toString(), target, md5(data));
+    }
+
+    /** Download of data with a patch from baseData, which is written to the base file */
+    private ModelDownloadManager.Download patchedDownload() throws IOException {
+        Files.write(base.toPath(), baseData);
+        return download().withPatch(server.url("/model.wbp").toString(), base, md5(baseData));
+    }
+
+    /**
+     * Patch in the {@link ModelPatch} format from baseData to data: copy the start of the base, insert the changed
+     * bytes, copy the rest. The inserted bytes make up most of the patch.
+     * @param baseMd5 base the patch claims to be for
+     */
+    private byte[] patch(String baseMd5) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x57425031);  // "WBP1"
+        out.write(fromHex(baseMd5));
+        out.write(fromHex(md5(data)));
+        out.writeLong(SIZE);
+        out.writeByte(1);  // COPY
+        out.writeLong(0);
+        out.writeInt(PATCH_OFFSET);
+        out.writeByte(2);  // INSERT
+        out.writeInt(PATCH_LENGTH);
+        out.write(data, PATCH_OFFSET, PATCH_LENGTH);
+        out.writeByte(1);
+        out.writeLong(PATCH_OFFSET + PATCH_LENGTH);
+        out.writeInt(SIZE - PATCH_OFFSET - PATCH_LENGTH);
+        out.writeByte(0);  // END
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private File patchPartFile() {
+        return new File(dir, target.getName() + ModelPatch.EXTENSION + ".part");
+    }
+
+    private static String md5(byte[] bytes) {
+        return ModelVerifier.toHex(ModelVerifier.newMd5().digest(bytes));
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
+    /** The first bytes of the file as left by an interrupted download */
+    private void writePart(ModelDownloadManager.Download download, int length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(ModelDownloadManager.partFile(download))) {
+            out.write(data, 0, length);
+        }
+    }
+
+    /**
+     * Download with a new manager and wait for the result. Without a patch, which reports its own size, the total
+     * must be known from the first progress report and, unless the server restarts the file, the received bytes
+     * must not go back.
+     */
+    private boolean run(ModelDownloadManager.Download download) throws InterruptedException {
+        ModelDownloadManager manager = new ModelDownloadManager(context, new OkHttpClient());
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicBoolean result = new AtomicBoolean(false);
+        AtomicBoolean totalKnown = new AtomicBoolean(true);
+        AtomicBoolean monotonic = new AtomicBoolean(true);
+        long[] last = {0};
+        assertTrue(manager.start(Collections.singletonList(download), new ModelDownloadManager.Listener() {
+            @Override
+            public void onProgress(long bytes, long totalBytes) {
+                if (totalBytes != SIZE) totalKnown.set(false);
+                if (bytes < last[0]) monotonic.set(false);
+                last[0] = bytes;
+            }
+
+            @Override
+            public void onFinished(boolean success) {
+                result.set(success);
+                finished.countDown();
+            }
+        }));
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        if (download.patchUrl == null) {
+            assertTrue(totalKnown.get());
+            if (dispatcher.honorRange) assertTrue(monotonic.get());
+        }
+        return result.get();
+    }
+
+    private void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) assertTrue(file.delete());
+        if (dir.exists()) assertTrue(dir.delete());
+    }
+}
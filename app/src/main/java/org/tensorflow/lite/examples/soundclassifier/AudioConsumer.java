@@ -0,0 +1,123 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base class for stages which consume the raw capture stream next to the classifier.
+ * <p>
+ * The capture thread only copies samples into a {@link SampleRingBuffer}, a background thread drains it
+ * periodically and hands the samples to {@link #process(short[], int)}, so slow consumers never block classification.
+ * Samples dropped because a consumer fell behind are reported in stream order by {@link #onDropped(long)}.
+ */
+public abstract class AudioConsumer {
+    private final String name;
+    private final SampleRingBuffer ringBuffer;
+    private final short[] drainBuffer;
+    private final long drainIntervalNanos;
+
+    private long droppedSeen;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    protected AudioConsumer(String name, int bufferSamples, int chunkSamples, long drainIntervalNanos) {
+        this.name = name;
+        this.ringBuffer = new SampleRingBuffer(bufferSamples);
+        this.drainBuffer = new short[chunkSamples];
+        this.drainIntervalNanos = drainIntervalNanos;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Start the background thread, returns false if the consumer could not be started */
+    public synchronized boolean start() {
+        if (running) return true;
+        try {
+            onStart();
+        } catch (IOException e) {
+            Log.e(name, "Failed to start", e);
+            return false;
+        }
+        ringBuffer.clear();
+        droppedSeen = ringBuffer.getDroppedCount();
+        running = true;
+        thread = new Thread(this::loop, name);
+        thread.start();
+        return true;
+    }
+
+    /** Called from the capture thread. Never blocks, samples are dropped if the consumer falls behind. */
+    public void write(short[] samples, int count) {
+        if (running) ringBuffer.write(samples, 0, count);
+    }
+
+    /** Stop the background thread after the buffered samples have been processed */
+    public synchronized void stop() {
+        if (thread == null) return;
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        if (ringBuffer.getDroppedCount() > 0) Log.w(name, "Dropped samples: " + ringBuffer.getDroppedCount());
+    }
+
+    private void loop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            while (running) {
+                drain();
+                LockSupport.parkNanos(drainIntervalNanos);
+            }
+            drain();
+        } catch (IOException e) {
+            Log.e(name, "Error processing audio", e);
+        } finally {
+            onStop();
+            running = false;
+        }
+    }
+
+    private void drain() throws IOException {
+        while (true) {
+            int limit = drainBuffer.length;
+            long dropped = ringBuffer.getDroppedCount();
+            if (dropped > droppedSeen) {
+                // Process the samples before the gap first, later drops are merged into the latest one
+                long beforeGap = ringBuffer.getDropPosition() - ringBuffer.getReadCount();
+                if (beforeGap <= 0) {
+                    onDropped(dropped - droppedSeen);
+                    droppedSeen = dropped;
+                    continue;
+                }
+                limit = (int) Math.min(limit, beforeGap);
+            }
+            int n = ringBuffer.read(drainBuffer, 0, limit);
+            if (n <= 0) break;
+            process(drainBuffer, n);
+        }
+    }
+
+    /** Called on the calling thread of start(), before the background thread is started */
+    protected void onStart() throws IOException {
+    }
+
+    /** Called on the background thread with new samples */
+    protected abstract void process(short[] samples, int count) throws IOException;
+
+    /** Called on the background thread where samples are missing from the stream */
+    protected void onDropped(long count) throws IOException {
+    }
+
+    /** Called on the background thread after the last samples have been processed */
+    protected void onStop() {
+    }
+}
@@ -5,13 +5,14 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import java.util.*;
 
 public class BirdDBHelper extends SQLiteOpenHelper {
 
     // Database name and table columns
     private static final String DB_NAME = "BirdDatabase.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
     public static final String TABLE_NAME = "BirdObservations";
     private static final String COLUMN_ID = "ID";
     private static final String COLUMN_MILLIS = "TimeInMillis";
@@ -20,7 +21,34 @@ public class BirdDBHelper extends SQLiteOpenHelper {
     private static final String COLUMN_NAME = "SpeciesName";
     private static final String COLUMN_SPECIES_ID = "BirdNET_ID";
     private static final String COLUMN_PROBABILITY = "Probability";
+    private static final String COLUMN_LOGITS = "Logits";
+    private static final String COLUMN_EMBEDDING = "Embedding";
+    private static final String COLUMN_MODEL_VERSION = "ModelVersion";
+    private static final String COLUMN_CONFIG = "Config";
+    private static final String COLUMN_SCORING = "Scoring";
+    /** Scoring flags: no location/date weighting was applied */
+    public static final int SCORING_NO_META = 1;
+    /** Scoring flags: the probability is a score smoothed over several windows, it cannot be recomputed from one window */
+    public static final int SCORING_SMOOTHED = 2;
+    /** Scoring flags: the regional model of ensemble mode was fused in, the stored logits are the main model's only */
+    public static final int SCORING_ENSEMBLE = 4;
+    /** Scoring of rows stored before the Scoring column existed */
+    public static final int SCORING_UNKNOWN = -1;
+    // Rows with these flags are skipped by rescoreAllEntries
+    private static final int SCORING_NOT_RESCORABLE = SCORING_SMOOTHED | SCORING_ENSEMBLE;
+    // Columns read by readObservation, without the Logits and Embedding BLOBs
+    private static final String OBSERVATION_COLUMNS = COLUMN_ID + "," + COLUMN_MILLIS + "," + COLUMN_LATITUDE + "," + COLUMN_LONGITUDE + "," +
+            COLUMN_NAME + "," + COLUMN_SPECIES_ID + "," + COLUMN_PROBABILITY + "," + COLUMN_CONFIG;
+    private static final int RESCORE_BATCH_SIZE = 1000;
+    public static final String SEGMENT_TABLE_NAME = "RecordingSegments";
+    private static final String COLUMN_START_MILLIS = "StartMillis";
+    private static final String COLUMN_PATH = "Path";
+    private static final String COLUMN_SAMPLE_RATE = "SampleRate";
+    private static final String COLUMN_SAMPLES = "Samples";
     private static BirdDBHelper instance = null;
+    private EmbeddingIndex embeddingIndex = null;
+    // Counts clearAllEntries, an index loaded across a clear is discarded
+    private int clearCount = 0;
     
     public BirdDBHelper(Context context) {
         super(context, DB_NAME, null, DATABASE_VERSION);
@@ -36,18 +64,52 @@ public class BirdDBHelper extends SQLiteOpenHelper {
                 COLUMN_LONGITUDE + " FLOAT," +
                 COLUMN_NAME + " TEXT," +
                 COLUMN_SPECIES_ID + " INTEGER," +
-                COLUMN_PROBABILITY + " FLOAT);";
+                COLUMN_PROBABILITY + " FLOAT," +
+                COLUMN_LOGITS + " BLOB," +
+                COLUMN_EMBEDDING + " BLOB," +
+                COLUMN_MODEL_VERSION + " TEXT," +
+                COLUMN_CONFIG + " TEXT," +
+                COLUMN_SCORING + " INTEGER);";
         db.execSQL(CREATE_TABLE);
+        createSegmentTable(db);
+    }
+
+    private void createSegmentTable(SQLiteDatabase db) {
+        // Segments of the continuous recording, Samples is updated when the segment is finished.
+        String CREATE_SEGMENT_TABLE = "CREATE TABLE IF NOT EXISTS "+SEGMENT_TABLE_NAME+" (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                COLUMN_START_MILLIS + " LONG," +
+                COLUMN_PATH + " TEXT," +
+                COLUMN_SAMPLE_RATE + " INTEGER," +
+                COLUMN_SAMPLES + " LONG);";
+        db.execSQL(CREATE_SEGMENT_TABLE);
     }
     
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop the table and create it again if there's a version change in the database schema.
-        db.execSQL("DROP TABLE IF EXISTS "+TABLE_NAME);
-        this.onCreate(db);
+        // Migrate step by step so existing observations are kept.
+        if (oldVersion < 2) createSegmentTable(db);
+        if (oldVersion < 3) db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_LOGITS + " BLOB");
+        if (oldVersion < 4) db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_EMBEDDING + " BLOB");
+        if (oldVersion < 5) db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_MODEL_VERSION + " TEXT");
+        if (oldVersion < 6) db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_CONFIG + " TEXT");
+        if (oldVersion < 7) db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_SCORING + " INTEGER");
     }
     
-    public synchronized void addEntry(String name, float latitude, float longitude, int speciesId, float probability, long timeInMillis) {
+    /** Recomputes the probability of a stored detection from its raw model output */
+    public interface ProbabilityFunction {
+        /**
+         * @param config A/B mode configuration of the detection, null if A/B mode was off
+         * @param scoring SCORING_ flags of the detection, SCORING_UNKNOWN for rows stored before they were recorded
+         */
+        float probability(int speciesId, float logit, float latitude, float longitude, long timeInMillis, String config, int scoring);
+    }
+
+    /**
+     * @param config name of the A/B mode configuration which made the detection, null if A/B mode is off
+     * @param scoring SCORING_ flags of how the probability was computed
+     */
+    public synchronized void addEntry(String name, float latitude, float longitude, int speciesId, float probability, long timeInMillis, byte[] logits, byte[] embedding, String modelVersion, String config, int scoring) {
         // Insert a new row into the table with all columns and their values from parameters.
         SQLiteDatabase db = getWritableDatabase();
         ContentValues cv = new ContentValues();
@@ -57,20 +119,191 @@ public class BirdDBHelper extends SQLiteOpenHelper {
         cv.put(COLUMN_LONGITUDE, longitude);
         cv.put(COLUMN_SPECIES_ID, speciesId);
         cv.put(COLUMN_PROBABILITY, probability);
+        cv.put(COLUMN_LOGITS, logits);
+        cv.put(COLUMN_EMBEDDING, embedding);
+        cv.put(COLUMN_MODEL_VERSION, modelVersion);
+        cv.put(COLUMN_CONFIG, config);
+        cv.put(COLUMN_SCORING, scoring);
         
-        db.insert(TABLE_NAME, null, cv); // Insert the row into the table with all columns and their values from parameters.
+        long id = db.insert(TABLE_NAME, null, cv); // Insert the row into the table with all columns and their values from parameters.
+        if (embeddingIndex != null && embedding != null) embeddingIndex.add((int) id, timeInMillis, embedding);
+    }
+
+    /**
+     * Returns the observations which sound most similar to the given observation, best match first.
+     * The embedding index is loaded on first use and kept up to date by addEntry.
+     */
+    public List<BirdObservation> getSimilarObservations(int id, int maxResults, float minSimilarity) {
+        EmbeddingIndex index = loadEmbeddingIndex();
+        synchronized (this) {
+            SQLiteDatabase db = getReadableDatabase();
+            List<BirdObservation> birdObservations = new ArrayList<>();
+            for (int similarId : index.findSimilar(id, maxResults, minSimilarity)) {
+                Cursor cursor = db.rawQuery("SELECT " + OBSERVATION_COLUMNS + " FROM " + TABLE_NAME + " WHERE " + COLUMN_ID + " = ?", new String[]{String.valueOf(similarId)});
+                if (cursor.moveToFirst()) birdObservations.add(readObservation(cursor));
+                cursor.close();
+            }
+            return birdObservations;
+        }
+    }
+
+    /**
+     * The embedding index, loaded without holding this helper so detections can be added and the history read
+     * meanwhile. Rows added during the load have higher IDs and are read under the lock before the index is used.
+     */
+    private EmbeddingIndex loadEmbeddingIndex() {
+        int clears;
+        synchronized (this) {
+            if (embeddingIndex != null) return embeddingIndex;
+            clears = clearCount;
+        }
+        EmbeddingIndex index = new EmbeddingIndex();
+        int lastId = addEmbeddings(index, 0);
+        synchronized (this) {
+            if (embeddingIndex != null) return embeddingIndex;  // loaded by another thread meanwhile
+            if (clears != clearCount) {
+                index = new EmbeddingIndex();
+                lastId = 0;
+            }
+            addEmbeddings(index, lastId);
+            embeddingIndex = index;
+            return index;
+        }
+    }
+
+    /** Add the stored embeddings of rows after afterId to index, returns the highest ID read */
+    private int addEmbeddings(EmbeddingIndex index, int afterId) {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT " + COLUMN_ID + "," + COLUMN_MILLIS + "," + COLUMN_EMBEDDING + " FROM " + TABLE_NAME +
+                " WHERE " + COLUMN_EMBEDDING + " IS NOT NULL AND " + COLUMN_ID + " > ? ORDER BY " + COLUMN_ID, new String[]{String.valueOf(afterId)});
+        int lastId = afterId;
+        while (cursor.moveToNext()) {
+            lastId = cursor.getInt(0);
+            index.add(lastId, cursor.getLong(1), cursor.getBlob(2));
+        }
+        cursor.close();
+        return lastId;
+    }
+
+    /** Reads a row selected with OBSERVATION_COLUMNS */
+    private static BirdObservation readObservation(Cursor cursor) {
+        BirdObservation birdObservation = new BirdObservation();
+        birdObservation.setId(cursor.getInt(0));
+        birdObservation.setMillis(cursor.getLong(1));
+        birdObservation.setLatitude(cursor.getFloat(2));
+        birdObservation.setLongitude(cursor.getFloat(3));
+        birdObservation.setName(cursor.getString(4));
+        birdObservation.setSpeciesId(cursor.getInt(5));
+        birdObservation.setProbability(cursor.getFloat(6));
+        birdObservation.setConfig(cursor.getString(7));
+        return birdObservation;
     }
     
+    /**
+     * Re-scores all detections which have raw logits stored, e.g. after thresholds of the meta model changed.
+     * Smoothed and ensemble detections are skipped, their probability does not follow from the stored logits.
+     * Rows are sorted by location and time so the function can reuse its meta weights for consecutive rows.
+     * The function runs without holding this helper, updates are written in transaction batches, so detections can
+     * be added and the history read while a re-scoring runs.
+     * @return number of updated detections
+     */
+    public int rescoreAllEntries(ProbabilityFunction function) {
+        String SELECT_LOGITS = "SELECT " + COLUMN_ID + "," + COLUMN_LATITUDE + "," + COLUMN_LONGITUDE + "," + COLUMN_MILLIS + "," + COLUMN_SPECIES_ID + "," + COLUMN_LOGITS + "," +
+                COLUMN_CONFIG + "," + COLUMN_SCORING +
+                " FROM " + TABLE_NAME + " WHERE " + COLUMN_LOGITS + " IS NOT NULL" +
+                " AND (" + COLUMN_SCORING + " IS NULL OR " + COLUMN_SCORING + " & " + SCORING_NOT_RESCORABLE + " = 0)" +
+                " ORDER BY " + COLUMN_LATITUDE + "," + COLUMN_LONGITUDE + "," + COLUMN_MILLIS;
+        long[] ids = new long[RESCORE_BATCH_SIZE];
+        float[] probabilities = new float[RESCORE_BATCH_SIZE];
+        int n = 0;
+        int count = 0;
+        try (Cursor cursor = getReadableDatabase().rawQuery(SELECT_LOGITS, null)) {
+            while (cursor.moveToNext()) {
+                int speciesId = cursor.getInt(4);
+                float logit = TopLogits.logitOf(cursor.getBlob(5), speciesId);
+                if (Float.isNaN(logit)) continue;
+                int scoring = cursor.isNull(7) ? SCORING_UNKNOWN : cursor.getInt(7);
+                ids[n] = cursor.getLong(0);
+                probabilities[n] = function.probability(speciesId, logit, cursor.getFloat(1), cursor.getFloat(2), cursor.getLong(3), cursor.getString(6), scoring);
+                if (++n == RESCORE_BATCH_SIZE) {
+                    count += updateProbabilities(ids, probabilities, n);
+                    n = 0;
+                }
+            }
+        }
+        return count + updateProbabilities(ids, probabilities, n);
+    }
+
+    /** Write the first n probabilities in one transaction */
+    private synchronized int updateProbabilities(long[] ids, float[] probabilities, int n) {
+        if (n == 0) return 0;
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + COLUMN_PROBABILITY + " = ? WHERE " + COLUMN_ID + " = ?");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < n; i++) {
+                update.bindDouble(1, probabilities[i]);
+                update.bindLong(2, ids[i]);
+                update.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+        return n;
+    }
+
+    public synchronized long addSegment(long startMillis, String path, int sampleRate) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues cv = new ContentValues();
+        cv.put(COLUMN_START_MILLIS, startMillis);
+        cv.put(COLUMN_PATH, path);
+        cv.put(COLUMN_SAMPLE_RATE, sampleRate);
+        cv.put(COLUMN_SAMPLES, 0L);
+
+        return db.insert(SEGMENT_TABLE_NAME, null, cv);
+    }
+
+    public synchronized void finishSegment(long segmentId, long samples) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues cv = new ContentValues();
+        cv.put(COLUMN_SAMPLES, samples);
+
+        db.update(SEGMENT_TABLE_NAME, cv, COLUMN_ID + " = ?", new String[]{String.valueOf(segmentId)});
+    }
+
+    /** Returns the recording segment which contains the given time, or null if it was not recorded */
+    public synchronized RecordingSegment getSegmentAt(long timeInMillis) {
+        SQLiteDatabase db = getReadableDatabase();
+        // Unfinished segments have Samples = 0, treat them as open ended
+        String SELECT_SEGMENT = "SELECT * FROM " + SEGMENT_TABLE_NAME +
+                " WHERE " + COLUMN_START_MILLIS + " <= ?" +
+                " AND (" + COLUMN_SAMPLES + " = 0 OR " + COLUMN_START_MILLIS + " + " + COLUMN_SAMPLES + " * 1000 / " + COLUMN_SAMPLE_RATE + " >= ?)" +
+                " ORDER BY " + COLUMN_START_MILLIS + " DESC LIMIT 1";
+        String time = String.valueOf(timeInMillis);
+        Cursor cursor = db.rawQuery(SELECT_SEGMENT, new String[]{time, time});
+
+        RecordingSegment segment = null;
+        if (cursor.moveToFirst()) {
+            segment = new RecordingSegment(cursor.getLong(0), cursor.getLong(1), cursor.getString(2), cursor.getInt(3), cursor.getLong(4));
+        }
+        cursor.close();
+        return segment;
+    }
+
     public synchronized void clearAllEntries() {
         SQLiteDatabase db = getWritableDatabase();
         String CLEAR_TABLE = "DELETE FROM "+ TABLE_NAME;
         
         db.execSQL(CLEAR_TABLE); // Delete all rows in the table, effectively clearing it out.
+        embeddingIndex = null;
+        clearCount++;
     }
     
     public synchronized List<String> exportAllEntriesAsCSV() {
         SQLiteDatabase db = getReadableDatabase();
-        String SELECT_ALL = "SELECT * FROM "+ TABLE_NAME;
+        String SELECT_ALL = "SELECT " + COLUMN_MILLIS + "," + COLUMN_LATITUDE + "," + COLUMN_LONGITUDE + "," + COLUMN_NAME + "," +
+                COLUMN_SPECIES_ID + "," + COLUMN_PROBABILITY + "," + COLUMN_MODEL_VERSION + "," + COLUMN_CONFIG + " FROM " + TABLE_NAME;
         
         Cursor cursor = db.rawQuery(SELECT_ALL, null); // Execute the query to select all rows from the table and store them in a cursor object for further processing.
         
@@ -78,14 +311,17 @@ public class BirdDBHelper extends SQLiteOpenHelper {
         
         if (cursor != null && cursor.moveToFirst()) { 
             do {
-                long millis = cursor.getLong(1);        // time in milliseconds
-                float latitude = cursor.getFloat(2);    // latitude
-                float longitude = cursor.getFloat(3);   // longitude
-                String nameStr = cursor.getString(4);   // name of the bird species
-                int speciesId = cursor.getInt(5);       // id for the species in BirdNET
-                float probability = cursor.getFloat(6); // estimated probability that this observation is correct
+                long millis = cursor.getLong(0);        // time in milliseconds
+                float latitude = cursor.getFloat(1);    // latitude
+                float longitude = cursor.getFloat(2);   // longitude
+                String nameStr = cursor.getString(3);   // name of the bird species
+                int speciesId = cursor.getInt(4);       // id for the species in BirdNET
+                float probability = cursor.getFloat(5); // estimated probability that this observation is correct
                 
-                String csvString = millis + "," + latitude + "," + longitude + "," + nameStr + "," + speciesId + "," + probability;
+                String modelVersion = cursor.isNull(6) ? "" : cursor.getString(6);  // model which made the detection
+                String config = cursor.isNull(7) ? "" : cursor.getString(7);  // A/B mode configuration
+
+                String csvString = millis + "," + latitude + "," + longitude + "," + nameStr + "," + speciesId + "," + probability + "," + modelVersion + "," + config;
 
                 csvDataList.add(csvString);    
             } while (cursor.moveToNext());
@@ -94,24 +330,20 @@ public class BirdDBHelper extends SQLiteOpenHelper {
         return csvDataList;
     }
 
-    public synchronized List<BirdObservation> getAllBirdObservations(boolean detailed) {
+    /** All detections above the threshold of their species, see SpeciesThresholds.resolve() */
+    public synchronized List<BirdObservation> getAllBirdObservations(boolean detailed, float[] thresholds) {
         SQLiteDatabase db = this.getReadableDatabase();
 
-        String SELECT_ALL = "SELECT * FROM "+ TABLE_NAME;
-        Cursor cursor = db.rawQuery(SELECT_ALL, null); // Execute the query to select all rows from the table and store them in a cursor object for further processing.
+        // Apply the current thresholds, probabilities may have been re-scored since the detection
+        String SELECT_ALL = "SELECT " + OBSERVATION_COLUMNS + " FROM "+ TABLE_NAME + " WHERE " + COLUMN_PROBABILITY + " >= ?";
+        Cursor cursor = db.rawQuery(SELECT_ALL, new String[]{String.valueOf(SpeciesThresholds.minimum(thresholds))}); // Execute the query to select all rows from the table and store them in a cursor object for further processing.
 
         List<BirdObservation> birdObservations = new ArrayList<>();
         BirdObservation previousEntry = null;
         if (cursor.moveToFirst()) {
             do {
-                BirdObservation birdObservation = new BirdObservation();
-                birdObservation.setId(cursor.getInt(0));
-                birdObservation.setMillis(cursor.getLong(1));
-                birdObservation.setLatitude(cursor.getFloat(2));
-                birdObservation.setLongitude(cursor.getFloat(3));
-                birdObservation.setName(cursor.getString(4));
-                birdObservation.setSpeciesId(cursor.getInt(5));
-                birdObservation.setProbability(cursor.getFloat(6));
+                BirdObservation birdObservation = readObservation(cursor);
+                if (!SpeciesThresholds.passes(thresholds, birdObservation.getSpeciesId(), birdObservation.getProbability())) continue;
 
                 if (!detailed) {
                     // Check if the current entry has the same species id as previousEntry and a higher probability value
@@ -137,6 +369,21 @@ public class BirdDBHelper extends SQLiteOpenHelper {
         return birdObservations;
     }
 
+    /** Detections between fromMillis (inclusive) and toMillis (exclusive) above the threshold of their species, sorted by time */
+    public synchronized List<BirdObservation> getBirdObservations(long fromMillis, long toMillis, float[] thresholds) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT " + OBSERVATION_COLUMNS + " FROM " + TABLE_NAME + " WHERE " + COLUMN_MILLIS + " >= ? AND " + COLUMN_MILLIS + " < ? AND " +
+                        COLUMN_PROBABILITY + " >= ? ORDER BY " + COLUMN_MILLIS,
+                new String[]{String.valueOf(fromMillis), String.valueOf(toMillis), String.valueOf(SpeciesThresholds.minimum(thresholds))});
+        List<BirdObservation> birdObservations = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            BirdObservation birdObservation = readObservation(cursor);
+            if (SpeciesThresholds.passes(thresholds, birdObservation.getSpeciesId(), birdObservation.getProbability())) birdObservations.add(birdObservation);
+        }
+        cursor.close();
+        return birdObservations;
+    }
+
     public static BirdDBHelper getInstance(Context context) {
         if (instance == null && context != null) {
             instance = new BirdDBHelper(context.getApplicationContext());
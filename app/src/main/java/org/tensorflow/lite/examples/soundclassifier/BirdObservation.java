@@ -8,6 +8,7 @@ public class BirdObservation {
     private String name;
     private int speciesId;
     private float probability;
+    private String config;
 
     public BirdObservation(int id, long millis, float latitude, float longitude, String name, int speciesId, float probability) {
         this.id = id;
@@ -78,4 +79,13 @@ public class BirdObservation {
     public void setProbability(float probability) {
         this.probability = probability;
     }
+
+    /** A/B mode configuration which made the detection, null if A/B mode was off */
+    public String getConfig() {
+        return config;
+    }
+
+    public void setConfig(String config) {
+        this.config = config;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of one classification pipeline: high-pass filter, detection threshold and location/date weighting.
+ * <p>
+ * A/B mode adds configuration B from the ab_ preferences. It classifies the same audio as configuration A, so two
+ * settings can be compared in the field with one device. Configurations with the same high-pass filter share the
+ * model input and inference, only the scoring runs per configuration. Detections are stored with the name of their
+ * configuration.
+ */
+public class ClassificationConfig {
+    public static final String A = "A";
+    public static final String B = "B";
+
+    /** Name stored with detections, null if A/B mode is off */
+    public final String name;
+    /** Cutoff of the high-pass filter in Hz, 0 for no filter */
+    public final int highPass;
+    /** Global detection threshold, see SpeciesThresholds */
+    public final float threshold;
+    /** Score all species, without location/date weighting. For A the checkbox of the main screen applies while running */
+    public final boolean ignoreMeta;
+
+    public ClassificationConfig(String name, int highPass, float threshold, boolean ignoreMeta) {
+        this.name = name;
+        this.highPass = highPass;
+        this.threshold = threshold;
+        this.ignoreMeta = ignoreMeta;
+    }
+
+    /** Configuration A, and B if A/B mode is on */
+    public static List<ClassificationConfig> fromPreferences(Context context) {
+        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean abMode = sharedPref.getBoolean("ab_mode", false);
+        List<ClassificationConfig> configs = new ArrayList<>(2);
+        configs.add(new ClassificationConfig(abMode ? A : null,
+                sharedPref.getInt("high_pass", 0),
+                sharedPref.getInt("model_threshold", 30) / 100f,
+                sharedPref.getBoolean("main_ignore_meta", false)));
+        if (abMode) {
+            configs.add(new ClassificationConfig(B,
+                    sharedPref.getInt("ab_high_pass", 0),
+                    sharedPref.getInt("ab_model_threshold", 30) / 100f,
+                    sharedPref.getBoolean("ab_ignore_meta", false)));
+        }
+        return configs;
+    }
+}
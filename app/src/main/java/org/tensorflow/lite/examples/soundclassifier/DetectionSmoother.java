@@ -0,0 +1,109 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+/**
+ * Smooths the probabilities of consecutive, overlapping classification windows per species and decides with
+ * hysteresis which species are detected, so a species close to its threshold does not flicker on and off.
+ * <p>
+ * The score is an exponential moving average or the maximum of the last windows. A species is switched on when its
+ * score reaches its threshold and switched off when the score falls below OFF_RATIO of it. A detection is stored
+ * once per switch on, the first time the species ranks high enough after it, see {@link #isPending}. State is kept in primitive arrays by position in the active species set, see
+ * {@link #setSpecies}.
+ */
+public class DetectionSmoother {
+    public static final String MODE_EMA = "ema";
+    public static final String MODE_MAX = "max";
+    /** Weight of the latest window in the moving average */
+    private static final float EMA_ALPHA = 0.4f;
+    /** Windows of the max-pool, 3 ticks cover the 3 s model input */
+    private static final int MAX_WINDOWS = 3;
+    /** Off threshold relative to the on threshold */
+    private static final float OFF_RATIO = 0.75f;
+
+    private final boolean maxPool;
+    private final int windows;
+    private int[] species = new int[0];
+    private float[] score = new float[0];
+    private float[] history = new float[0];
+    private boolean[] on = new boolean[0];
+    /** Switched on but not yet stored */
+    private boolean[] pending = new boolean[0];
+    private int window = 0;
+
+    /** @param mode MODE_EMA or MODE_MAX */
+    public DetectionSmoother(String mode) {
+        maxPool = MODE_MAX.equals(mode);
+        windows = maxPool ? MAX_WINDOWS : 1;
+    }
+
+    /**
+     * Use another set of species, ascending class indices. Arrays are only reallocated when the set changes,
+     * species in both sets keep their state.
+     */
+    public void setSpecies(int[] active) {
+        if (active == species) return;
+        float[] newScore = new float[active.length];
+        float[] newHistory = new float[windows * active.length];
+        boolean[] newOn = new boolean[active.length];
+        boolean[] newPending = new boolean[active.length];
+        int k = 0;
+        for (int n = 0; n < active.length; n++) {
+            while (k < species.length && species[k] < active[n]) k++;
+            if (k < species.length && species[k] == active[n]) {
+                newScore[n] = score[k];
+                newOn[n] = on[k];
+                newPending[n] = pending[k];
+                for (int w = 0; w < windows; w++) newHistory[w * active.length + n] = history[w * species.length + k];
+            }
+        }
+        species = active;
+        score = newScore;
+        history = newHistory;
+        on = newOn;
+        pending = newPending;
+    }
+
+    /**
+     * Add the probability of the species at position k of the set in the current window.
+     * @param threshold on threshold of the species
+     * @return smoothed score
+     */
+    public float update(int k, float probability, float threshold) {
+        float s;
+        if (maxPool) {
+            history[window * species.length + k] = probability;
+            s = probability;
+            for (int w = 0; w < windows; w++) s = Math.max(s, history[w * species.length + k]);
+        } else {
+            s = EMA_ALPHA * probability + (1 - EMA_ALPHA) * score[k];
+        }
+        score[k] = s;
+        if (!on[k] && s >= threshold) {
+            on[k] = true;
+            pending[k] = true;
+        } else if (on[k] && s < threshold * OFF_RATIO) {
+            on[k] = false;
+            pending[k] = false;
+        }
+        return s;
+    }
+
+    /** The species at position k is detected */
+    public boolean isOn(int k) {
+        return on[k];
+    }
+
+    /** The species at position k is on and its detection was not stored since it was switched on */
+    public boolean isPending(int k) {
+        return pending[k];
+    }
+
+    /** The detection of the species at position k was stored, it is not pending until it is switched on again */
+    public void stored(int k) {
+        pending[k] = false;
+    }
+
+    /** Call after all species of a window were updated */
+    public void endWindow() {
+        window = (window + 1) % windows;
+    }
+}
@@ -12,6 +12,8 @@ class DownloadActivity  : AppCompatActivity() {
         super.onCreate(savedInstanceState)
         binding = ActivityDownloadBinding.inflate(layoutInflater)
         setContentView(binding!!.root)
+        binding!!.option32bit.isEnabled = !binding!!.optionAuto.isChecked
+        binding!!.optionAuto.setOnCheckedChangeListener { _, isChecked -> binding?.option32bit?.isEnabled = !isChecked }
     }
 
     override fun onResume() {
@@ -30,9 +32,22 @@ class DownloadActivity  : AppCompatActivity() {
     fun download(view: View) {
         binding?.downloadProgress?.setVisibility(View.VISIBLE)
         binding?.buttonStart?.setVisibility(View.INVISIBLE)
+        binding?.downloadButton?.setVisibility(View.GONE)
+        binding?.downloadCancel?.setVisibility(View.VISIBLE)
         Downloader.downloadModels(this, binding)
     }
 
+    fun cancelDownload(view: View) {
+        // the .part files are kept, the next download resumes them
+        ModelDownloadManager.getInstance(this).cancel()
+        binding?.downloadCancel?.setEnabled(false)
+    }
+
+    override fun onDestroy() {
+        if (isFinishing) ModelDownloadManager.getInstance(this).cancel()
+        super.onDestroy()
+    }
+
     fun startMain(view: View) {
         val intent = Intent(this, MainActivity::class.java)
         startActivity(intent)
@@ -8,189 +8,206 @@ import android.widget.Toast;
 
 import org.tensorflow.lite.examples.soundclassifier.databinding.ActivityDownloadBinding;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 
 @SuppressWarnings("ResultOfMethodCallIgnored")
 public class Downloader {
     static final String modelFILE = "model.tflite";
     static final String metaModelFILE = "metaModel.tflite";
+    static final String model32CandidateFILE = "model32.tflite";  // second variant, kept until the benchmark decided
+    static final String modelUpdateFILE = "model.update.tflite";  // replacement downloaded while the classifier runs
     static final String modelURL = "https://raw.githubusercontent.com/woheller69/whoBIRD-TFlite/master/BirdNET_GLOBAL_6K_V2.4_Model_FP16.tflite";
     static final String model32URL = "https://raw.githubusercontent.com/woheller69/whoBIRD-TFlite/master/BirdNET_GLOBAL_6K_V2.4_Model_FP32.tflite";
     static final String metaModelURL = "https://raw.githubusercontent.com/woheller69/whoBIRD-TFlite/master/BirdNET_GLOBAL_6K_V2.4_MData_Model_FP16.tflite";
     static final String modelMD5 = "b1c981fe261910b473b9b7eec9ebcd4e";
     static final String model32MD5 = "6c7c42106e56550fc8563adb31bc120e";
     static final String metaModelMD5 ="f1a078ae0f244a1ff5a8f1ccb645c805";
+    static final String patchBaseURL = "https://raw.githubusercontent.com/woheller69/whoBIRD-TFlite/master/patches/";
+    // MD5 of a model from an earlier release -> MD5 of the current model of the same variant. Installed models listed
+    // here are kept and updated with a patch "<old md5>-<new md5>.wbp", see ModelPatch.
+    static final Map<String, String> modelUpdates = Collections.emptyMap();
+    private static final int PROGRESS_MAX = 1000;
 
     public static boolean checkModels(final Activity activity) {
         File modelFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelFILE);
         File metaModelFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + metaModelFILE);
-        String calcModelMD5 = "";
-        String calcMetaModelMD5 = "";
-        if (modelFile.exists()) {
-            try {
-                byte[] data = Files.readAllBytes(Paths.get(modelFile.getPath()));
-                byte[] hash = MessageDigest.getInstance("MD5").digest(data);
-                calcModelMD5 = new BigInteger(1, hash).toString(16);
-            } catch (IOException | NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        if (metaModelFile.exists()) {
-            try {
-                byte[] data = Files.readAllBytes(Paths.get(metaModelFile.getPath()));
-                byte[] hash = MessageDigest.getInstance("MD5").digest(data);
-                calcMetaModelMD5 = new BigInteger(1, hash).toString(16);
-            } catch (IOException | NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        if (modelFile.exists() && !(calcModelMD5.equals(modelMD5) || calcModelMD5.equals(model32MD5))) modelFile.delete();
-        if (metaModelFile.exists() && !calcMetaModelMD5.equals(metaModelMD5)) metaModelFile.delete();
-
-        return (calcModelMD5.equals(modelMD5) || calcModelMD5.equals(model32MD5)) && calcMetaModelMD5.equals(metaModelMD5);
+        if (ModelDownloadManager.getInstance(activity).isRunning()) return false;  // download or benchmark in progress
+        File candidateFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + model32CandidateFILE);
+        if (candidateFile.exists()) candidateFile.delete();  // left over from an interrupted benchmark
+        File updateFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelUpdateFILE);
+        if (updateFile.exists()) updateFile.delete();  // left over from an interrupted variant change
+        List<String> accepted = new ArrayList<>(modelUpdates.keySet());
+        accepted.add(modelMD5);
+        accepted.add(model32MD5);
+        boolean modelOk = ModelVerifier.verify(activity, modelFile, accepted.toArray(new String[0]))
+                && !modelUpdates.containsKey(ModelVerifier.getVerifiedMd5(activity, modelFile));  // outdated, kept as patch base
+        boolean metaModelOk = ModelVerifier.verify(activity, metaModelFile, metaModelMD5);
+        return modelOk && metaModelOk;
     }
 
     public static void downloadModels(final Activity activity, ActivityDownloadBinding binding) {
+        binding.downloadProgress.setMax(PROGRESS_MAX);
         binding.downloadProgress.setProgress(0);
         File modelFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelFILE);
-        if (!modelFile.exists()) {
+        File metaModelFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + metaModelFILE);
+        File candidateFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + model32CandidateFILE);
+        File updateFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelUpdateFILE);
+        boolean benchmark = binding.optionAuto.isChecked();
+        List<ModelDownloadManager.Download> downloads = new ArrayList<>();
+        String installedMd5 = ModelVerifier.getVerifiedMd5(activity, modelFile);
+        String updateMd5 = modelUpdates.get(installedMd5);
+        if (updateMd5 != null) {
+            Log.d("whoBIRD", "model file is outdated");
+            String url = model32MD5.equals(updateMd5) ? model32URL : modelURL;
+            downloads.add(new ModelDownloadManager.Download(url, updateFile, updateMd5)
+                    .withPatch(patchURL(installedMd5, updateMd5), modelFile, installedMd5));
+        } else if (!modelFile.exists()) {
             Log.d("whoBIRD", "model file does not exist");
-            Thread thread = new Thread(() -> {
-                try {
-                    URL url;
-                    if (binding.option32bit.isChecked()) url = new URL(model32URL);
-                    else url = new URL(modelURL);
-
-                    Log.d("whoBIRD", "Download model");
-
-                    URLConnection ucon = url.openConnection();
-                    ucon.setReadTimeout(5000);
-                    ucon.setConnectTimeout(10000);
-
-                    InputStream is = ucon.getInputStream();
-                    BufferedInputStream inStream = new BufferedInputStream(is, 1024 * 5);
-
-                    modelFile.createNewFile();
-
-                    FileOutputStream outStream = new FileOutputStream(modelFile);
-                    byte[] buff = new byte[5 * 1024];
+            if (benchmark) {
+                downloads.add(new ModelDownloadManager.Download(modelURL, modelFile, modelMD5));
+                downloads.add(new ModelDownloadManager.Download(model32URL, candidateFile, model32MD5));
+            } else {
+                String url = binding.option32bit.isChecked() ? model32URL : modelURL;
+                downloads.add(new ModelDownloadManager.Download(url, modelFile, modelMD5, model32MD5));
+            }
+        }
+        if (!metaModelFile.exists()) {
+            Log.d("whoBIRD", "meta model file does not exist");
+            downloads.add(new ModelDownloadManager.Download(metaModelURL, metaModelFile, metaModelMD5));
+        }
 
-                    int len;
-                    while ((len = inStream.read(buff)) != -1) {
-                        outStream.write(buff, 0, len);
-                    }
-                    outStream.flush();
-                    outStream.close();
-                    inStream.close();
-
-                    String calcModelMD5="";
-                    if (modelFile.exists()) {
-                        byte[] data = Files.readAllBytes(Paths.get(modelFile.getPath()));
-                        byte[] hash = MessageDigest.getInstance("MD5").digest(data);
-                        calcModelMD5 = new BigInteger(1, hash).toString(16);
-                    } else {
-                        throw new IOException();  //throw exception if there is no modelFile at this point
-                    }
+        boolean started = ModelDownloadManager.getInstance(activity).start(downloads, new ModelDownloadManager.Listener() {
+            @Override
+            public void onProgress(long bytes, long totalBytes) {
+                if (totalBytes <= 0) return;
+                activity.runOnUiThread(() -> binding.downloadProgress.setProgress((int) (PROGRESS_MAX * bytes / totalBytes)));
+            }
 
-                    if (!(calcModelMD5.equals(modelMD5) || calcModelMD5.equals(model32MD5) )){
-                        modelFile.delete();
-                        activity.runOnUiThread(() -> {
-                            Toast.makeText(activity, activity.getResources().getString(R.string.error_download), Toast.LENGTH_SHORT).show();
-                        });
+            @Override
+            public void onFinished(boolean downloaded) {
+                boolean success = downloaded && (updateMd5 == null || installUpdate(activity, updateFile, modelFile, updateMd5));
+                if (success && benchmark && updateMd5 == null) {
+                    activity.runOnUiThread(() -> {
+                        binding.downloadProgress.setProgress(PROGRESS_MAX);
+                        binding.downloadCancel.setVisibility(View.GONE);
+                        binding.downloadStatus.setText(R.string.benchmarking);
+                        binding.downloadStatus.setVisibility(View.VISIBLE);
+                    });
+                    benchmarkModels(activity);
+                }
+                activity.runOnUiThread(() -> {
+                    binding.downloadCancel.setVisibility(View.GONE);
+                    binding.downloadCancel.setEnabled(true);
+                    if (success) {
+                        binding.downloadProgress.setProgress(PROGRESS_MAX);
+                        binding.buttonStart.setVisibility(View.VISIBLE);
+                        String result = ModelBenchmark.describe(activity);
+                        if (benchmark && result != null) binding.downloadStatus.setText(result);
                     } else {
-                        activity.runOnUiThread(() -> {
-                            binding.downloadProgress.setProgress(binding.downloadProgress.getProgress()+50);
-                            if (binding.downloadProgress.getProgress()==100) binding.buttonStart.setVisibility(View.VISIBLE);
-                        });
+                        binding.downloadButton.setVisibility(View.VISIBLE);
+                        Toast.makeText(activity, activity.getResources().getString(R.string.error_download), Toast.LENGTH_SHORT).show();
                     }
-                } catch (NoSuchAlgorithmException | IOException i) {
-                    activity.runOnUiThread(() -> Toast.makeText(activity, activity.getResources().getString(R.string.error_download), Toast.LENGTH_SHORT).show());
-                    modelFile.delete();
-                    Log.w("whoBIRD", activity.getResources().getString(R.string.error_download), i);
-                }
-            });
-            thread.start();
-        } else {
-            activity.runOnUiThread(() -> {
-                binding.downloadProgress.setProgress(binding.downloadProgress.getProgress()+50);
-                if (binding.downloadProgress.getProgress()==100) binding.buttonStart.setVisibility(View.VISIBLE);
-            });
-        }
+                });
+            }
+        });
+        if (!started) Log.d("whoBIRD", "download already running");
+    }
 
-        File metaModelFile = new File(activity.getDir("filesdir", Context.MODE_PRIVATE) + "/" + metaModelFILE);
-        if (!metaModelFile.exists()) {
-            Log.d("whoBIRD", "meta model file does not exist");
-            Thread thread = new Thread(() -> {
-                try {
-                    URL url = new URL(metaModelURL);
-                    Log.d("whoBIRD", "Download meta model");
+    /** URL of the patch from one model file to another */
+    static String patchURL(String baseMd5, String targetMd5) {
+        return patchBaseURL + baseMd5 + "-" + targetMd5 + ModelPatch.EXTENSION;
+    }
 
-                    URLConnection ucon = url.openConnection();
-                    ucon.setReadTimeout(5000);
-                    ucon.setConnectTimeout(10000);
+    /** Move a verified replacement over the model file and let a running classifier reload */
+    private static boolean installUpdate(Context context, File updateFile, File modelFile, String md5) {
+        // the running interpreter keeps its mapping of the replaced file until it is closed
+        if (!updateFile.renameTo(modelFile)) {
+            updateFile.delete();
+            return false;
+        }
+        ModelVerifier.markVerified(context, modelFile, md5);
+        SoundClassifier.reloadIfRunning();
+        return true;
+    }
 
-                    InputStream is = ucon.getInputStream();
-                    BufferedInputStream inStream = new BufferedInputStream(is, 1024 * 5);
+    /** Model variant of an MD5, null if unknown */
+    static String variant(String md5) {
+        if (modelMD5.equals(md5)) return "FP16";
+        if (model32MD5.equals(md5)) return "FP32";
+        return null;
+    }
 
-                    metaModelFile.createNewFile();
+    /**
+     * Benchmark the installed model and, if downloaded, the FP32 candidate. The faster variant is kept as model file,
+     * its fastest configuration is stored. Slow, call off the main thread.
+     */
+    static ModelBenchmark.Result benchmarkModels(Context context) {
+        File modelFile = new File(context.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelFILE);
+        File candidateFile = new File(context.getDir("filesdir", Context.MODE_PRIVATE) + "/" + model32CandidateFILE);
+        String variant = variant(ModelVerifier.getVerifiedMd5(context, modelFile));
+        List<String> variants = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        variants.add(variant != null ? variant : modelFILE);
+        files.add(modelFile);
+        if (candidateFile.exists()) {
+            variants.add("FP32");
+            files.add(candidateFile);
+        }
+        ModelBenchmark.Result best = ModelBenchmark.select(ModelBenchmark.run(variants.toArray(new String[0]), files.toArray(new File[0])));
+        if (best != null && best.file.equals(candidateFile)) {
+            if (candidateFile.renameTo(modelFile)) ModelVerifier.markVerified(context, modelFile, model32MD5);
+        }
+        candidateFile.delete();
+        if (best != null) {
+            ModelBenchmark.store(context, best);
+            Log.i("whoBIRD", "Selected " + best);
+        }
+        return best;
+    }
 
-                    FileOutputStream outStream = new FileOutputStream(metaModelFile);
-                    byte[] buff = new byte[5 * 1024];
+    /** Variant of the installed model, null if unknown */
+    static String installedVariant(Context context) {
+        File modelFile = new File(context.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelFILE);
+        return variant(ModelVerifier.getVerifiedMd5(context, modelFile));
+    }
 
-                    int len;
-                    while ((len = inStream.read(buff)) != -1) {
-                        outStream.write(buff, 0, len);
-                    }
-                    outStream.flush();
-                    outStream.close();
-                    inStream.close();
-
-                    String calcMetaModelMD5="";
-                    if (metaModelFile.exists()) {
-                        byte[] data = Files.readAllBytes(Paths.get(metaModelFile.getPath()));
-                        byte[] hash = MessageDigest.getInstance("MD5").digest(data);
-                        calcMetaModelMD5 = new BigInteger(1, hash).toString(16);
-                    } else {
-                        throw new IOException();  //throw exception if there is no modelFile at this point
-                    }
+    /** Version of the installed model, stored with each detection, e.g. "FP16-b1c981fe" */
+    static String modelVersion(Context context) {
+        File modelFile = new File(context.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelFILE);
+        String md5 = ModelVerifier.getVerifiedMd5(context, modelFile);
+        if (md5 == null) return "unknown";
+        String variant = variant(md5);
+        return (variant != null ? variant : "model") + "-" + md5.substring(0, 8);
+    }
 
-                    if (!calcMetaModelMD5.equals(metaModelMD5)){
-                        metaModelFile.delete();
-                        activity.runOnUiThread(() -> {
-                            Toast.makeText(activity, activity.getResources().getString(R.string.error_download), Toast.LENGTH_SHORT).show();
-                        });
-                    } else {
-                        activity.runOnUiThread(() -> {
-                            binding.downloadProgress.setProgress(binding.downloadProgress.getProgress()+50);
-                            if (binding.downloadProgress.getProgress()==100) binding.buttonStart.setVisibility(View.VISIBLE);
-                        });
-                    }
-                } catch (NoSuchAlgorithmException | IOException i) {
-                    activity.runOnUiThread(() -> Toast.makeText(activity, activity.getResources().getString(R.string.error_download), Toast.LENGTH_SHORT).show());
-                    metaModelFile.delete();
-                    Log.w("whoBIRD", activity.getResources().getString(R.string.error_download), i);
-                }
-            });
-            thread.start();
-        } else {
-            activity.runOnUiThread(() -> {
-                binding.downloadProgress.setProgress(binding.downloadProgress.getProgress()+50);
-                if (binding.downloadProgress.getProgress()==100) binding.buttonStart.setVisibility(View.VISIBLE);
-            });
-        }
+    /**
+     * Download another model variant next to the installed one and replace it, then let a running classifier
+     * reload. Returns false if a download is already running.
+     */
+    static boolean installVariant(Context context, String variant, ModelDownloadManager.Listener listener) {
+        boolean fp32 = "FP32".equals(variant);
+        String md5 = fp32 ? model32MD5 : modelMD5;
+        File modelFile = new File(context.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelFILE);
+        File updateFile = new File(context.getDir("filesdir", Context.MODE_PRIVATE) + "/" + modelUpdateFILE);
+        List<ModelDownloadManager.Download> downloads = new ArrayList<>();
+        downloads.add(new ModelDownloadManager.Download(fp32 ? model32URL : modelURL, updateFile, md5));
+        return ModelDownloadManager.getInstance(context).start(downloads, new ModelDownloadManager.Listener() {
+            @Override
+            public void onProgress(long bytes, long totalBytes) {
+                listener.onProgress(bytes, totalBytes);
+            }
 
+            @Override
+            public void onFinished(boolean success) {
+                if (success) success = installUpdate(context, updateFile, modelFile, md5);
+                else updateFile.delete();
+                listener.onFinished(success);
+            }
+        });
     }
-}
\ No newline at end of file
+}
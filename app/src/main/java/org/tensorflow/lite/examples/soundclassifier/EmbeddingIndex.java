@@ -0,0 +1,97 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * In-memory index of the feature embeddings stored with detections.
+ * <p>
+ * Embeddings are quantized to int8 with one float scale per vector, stored as BLOB (scale followed by the int8 values).
+ * Similarity search is a brute-force cosine scan over one packed byte array, the scale cancels out in the cosine.
+ */
+public class EmbeddingIndex {
+    private static final int HEADER_SIZE = 4;
+
+    private int dimension = -1;
+    private int size = 0;
+    private int[] ids = new int[0];
+    private long[] millis = new long[0];
+    private float[] norms = new float[0];
+    private byte[] codes = new byte[0];
+
+    /** Quantize an embedding to scale + int8 values */
+    public static byte[] quantize(float[] embedding) {
+        float maxAbs = 0f;
+        for (float v : embedding) maxAbs = Math.max(maxAbs, Math.abs(v));
+        float scale = maxAbs > 0f ? maxAbs / 127f : 1f;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + embedding.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putFloat(scale);
+        for (float v : embedding) buffer.put((byte) Math.round(v / scale));
+        return buffer.array();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Add a stored embedding. Embeddings with a different dimension (other model) are ignored. */
+    public void add(int id, long timeInMillis, byte[] blob) {
+        if (blob == null || blob.length <= HEADER_SIZE) return;
+        int dim = blob.length - HEADER_SIZE;
+        if (dimension == -1) dimension = dim;
+        if (dim != dimension) return;
+        if (size == ids.length) {
+            int capacity = Math.max(256, size * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            millis = Arrays.copyOf(millis, capacity);
+            norms = Arrays.copyOf(norms, capacity);
+            codes = Arrays.copyOf(codes, capacity * dimension);
+        }
+        System.arraycopy(blob, HEADER_SIZE, codes, size * dimension, dimension);
+        long sum = 0;
+        for (int i = HEADER_SIZE; i < blob.length; i++) sum += blob[i] * blob[i];
+        ids[size] = id;
+        millis[size] = timeInMillis;
+        norms[size] = (float) Math.sqrt(sum);
+        size++;
+    }
+
+    /**
+     * Find the detections whose embedding is most similar to the embedding of detection id.
+     * Detections from the same analysis window (same timestamp) are skipped.
+     * @return IDs of the most similar detections, best first
+     */
+    public int[] findSimilar(int id, int maxResults, float minSimilarity) {
+        int query = -1;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                query = i;
+                break;
+            }
+        }
+        if (query == -1 || norms[query] == 0f) return new int[0];
+
+        int[] resultIds = new int[maxResults];
+        float[] resultSimilarity = new float[maxResults];
+        int n = 0;
+        int queryOffset = query * dimension;
+        for (int i = 0; i < size; i++) {
+            if (millis[i] == millis[query] || norms[i] == 0f) continue;
+            int offset = i * dimension;
+            int dot = 0;
+            for (int d = 0; d < dimension; d++) dot += codes[queryOffset + d] * codes[offset + d];
+            float similarity = dot / (norms[query] * norms[i]);
+            if (similarity < minSimilarity || (n == maxResults && similarity <= resultSimilarity[n - 1])) continue;
+            int pos = (n < maxResults) ? n++ : maxResults - 1;
+            while (pos > 0 && resultSimilarity[pos - 1] < similarity) {
+                resultSimilarity[pos] = resultSimilarity[pos - 1];
+                resultIds[pos] = resultIds[pos - 1];
+                pos--;
+            }
+            resultSimilarity[pos] = similarity;
+            resultIds[pos] = ids[i];
+        }
+        return Arrays.copyOf(resultIds, n);
+    }
+}
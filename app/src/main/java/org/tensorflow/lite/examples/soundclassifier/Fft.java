@@ -0,0 +1,82 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+/**
+ * In-place radix-2 FFT with precomputed twiddle factors, bit-reversal table and Hann window.
+ * All buffers are allocated once, {@link #powerSpectrum(short[], int, float[])} does not allocate.
+ * Not thread-safe, use one instance per thread.
+ */
+public class Fft {
+    private final int size;
+    private final int[] bitReverse;
+    private final float[] cos;
+    private final float[] sin;
+    private final float[] window;
+    private final float scale;
+    private final float[] re;
+    private final float[] im;
+
+    public Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) throw new IllegalArgumentException("FFT size must be a power of 2: " + size);
+        this.size = size;
+        int bits = Integer.numberOfTrailingZeros(size);
+        bitReverse = new int[size];
+        for (int i = 0; i < size; i++) bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = (float) Math.cos(-2 * Math.PI * i / size);
+            sin[i] = (float) Math.sin(-2 * Math.PI * i / size);
+        }
+        window = new float[size];
+        float sum = 0f;
+        for (int i = 0; i < size; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (size - 1)));
+            sum += window[i];
+        }
+        scale = 4f / (sum * sum);  // corrects the window gain, a full-scale sine peaks at 1 (0 dB)
+        re = new float[size];
+        im = new float[size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Number of frequency bins returned by {@link #powerSpectrum(short[], int, float[])} */
+    public int bins() {
+        return size / 2;
+    }
+
+    /**
+     * Windowed power spectrum of size samples starting at offset, relative to 16-bit full scale.
+     * @param out receives bins() values
+     */
+    public void powerSpectrum(short[] samples, int offset, float[] out) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReverse[i];
+            re[j] = samples[offset + i] * window[i] / 32768f;
+            im[j] = 0f;
+        }
+        for (int half = 1; half < size; half <<= 1) {
+            int step = size / (half * 2);
+            for (int start = 0; start < size; start += half * 2) {
+                for (int k = 0; k < half; k++) {
+                    float c = cos[k * step];
+                    float s = sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = re[b] * c - im[b] * s;
+                    float ti = re[b] * s + im[b] * c;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+        int bins = size / 2;
+        for (int i = 0; i < bins; i++) {
+            out[i] = (re[i] * re[i] + im[i] * im[i]) * scale;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.tensorflow.lite.examples.soundclassifier
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import androidx.preference.PreferenceManager
+import org.tensorflow.lite.Interpreter
+import java.io.IOException
+import java.nio.FloatBuffer
+import java.time.Instant
+import java.time.ZoneId
+import kotlin.math.exp
+
+/**
+ * Re-applies sigmoid and meta weighting to all stored detections from their raw logits,
+ * without re-analyzing audio. The meta model is only run once per location and week.
+ * Each detection keeps the location/date setting it was scored with. For detections stored before that was
+ * recorded, the current setting of their configuration applies. Smoothed and ensemble detections are not re-scored.
+ */
+class HistoryRescorer(
+  private val context: Context,
+  private val options: SoundClassifier.Options = SoundClassifier.Options()
+) {
+
+  /** @return number of re-scored detections */
+  @Throws(IOException::class)
+  fun run(): Int {
+    val t0 = SystemClock.elapsedRealtime()
+    val sharedPref = PreferenceManager.getDefaultSharedPreferences(context)
+    val mainIgnoreMeta = sharedPref.getBoolean("main_ignore_meta", false)
+    val abIgnoreMeta = sharedPref.getBoolean("ab_ignore_meta", false)
+    val metaInterpreter = Interpreter(SoundClassifier.mapModelFile(context, options.metaModelPath), Interpreter.Options())
+    val metaNumClasses = metaInterpreter.getOutputTensor(0).shape()[1]
+    val metaInputBuffer = FloatBuffer.allocate(metaInterpreter.getInputTensor(0).shape()[1])
+    val metaOutputBuffer = FloatBuffer.allocate(metaNumClasses)
+    val metaWeights = FloatArray(metaNumClasses)
+
+    var lastLat = Float.NaN
+    var lastLon = Float.NaN
+    var lastWeek = -1.0
+    var metaRuns = 0
+    val count = try {
+      BirdDBHelper.getInstance(context).rescoreAllEntries { speciesId, logit, latitude, longitude, timeInMillis, config, scoring ->
+        val probability = 1 / (1 + exp(-logit))  //apply sigmoid
+        val ignoreMeta = if (scoring != BirdDBHelper.SCORING_UNKNOWN) (scoring and BirdDBHelper.SCORING_NO_META) != 0
+          else if (config == ClassificationConfig.B) abIgnoreMeta else mainIgnoreMeta
+        if (ignoreMeta || (latitude == 0f && longitude == 0f) || speciesId >= metaNumClasses) {
+          probability  //no location known at detection time
+        } else {
+          val dayOfYear = Instant.ofEpochMilli(timeInMillis).atZone(ZoneId.systemDefault()).dayOfYear
+          val week = SoundClassifier.modelWeek(dayOfYear)
+          if (latitude != lastLat || longitude != lastLon || week != lastWeek) {
+            metaInputBuffer.put(0, latitude)
+            metaInputBuffer.put(1, longitude)
+            metaInputBuffer.put(2, SoundClassifier.metaWeekInput(week))
+            metaInputBuffer.rewind()
+            metaOutputBuffer.rewind()
+            metaInterpreter.run(metaInputBuffer, metaOutputBuffer)
+            metaOutputBuffer.rewind()
+            metaOutputBuffer.get(metaWeights)
+            for (i in metaWeights.indices) {
+              metaWeights[i] = SoundClassifier.metaWeight(metaWeights[i], options)
+            }
+            lastLat = latitude
+            lastLon = longitude
+            lastWeek = week
+            metaRuns++
+          }
+          metaWeights[speciesId] * probability
+        }
+      }
+    } finally {
+      metaInterpreter.close()
+    }
+    Log.i(TAG, "Re-scored $count detections with $metaRuns meta model runs in ${SystemClock.elapsedRealtime() - t0} ms")
+    return count
+  }
+
+  companion object {
+    private const val TAG = "HistoryRescorer"
+  }
+}
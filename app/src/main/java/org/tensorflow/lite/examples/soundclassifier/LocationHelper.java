@@ -1,70 +1,152 @@
 package org.tensorflow.lite.examples.soundclassifier;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
-import android.widget.Toast;
+import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
+/**
+ * Location for the meta model, which only needs the 0.01 degree cell (about 1 km).
+ * <p>
+ * Starts with the last known location, then listens to the network provider, or GPS if there is no network
+ * location, once a minute without a minimum distance, so a device that does not move keeps getting fixes. Once
+ * STABLE_FIXES fixes in a row lie in the same cell the active provider is stopped.
+ * Passive updates, i.e. fixes requested by other apps, keep arriving at no cost and restart the active provider when
+ * the device moved more than MOTION_METERS.
+ */
+@SuppressLint("MissingPermission")  //checked in requestLocation
 public class LocationHelper {
+    private static final String TAG = "LocationHelper";
+    private static final long MIN_TIME_MILLIS = 60_000;
+    // half a meta model cell, passive updates only
+    private static final float PASSIVE_MIN_DISTANCE_METERS = 500f;
+    private static final float MAX_ACCURACY_METERS = 1000f;
+    private static final int STABLE_FIXES = 3;
+    private static final float MOTION_METERS = 1000f;
+
     private static Location oldLocation;
-    private static LocationListener locationListenerGPS;
+    private static Location stableLocation;
+    private static int sameCellFixes;
+    private static LocationListener activeListener;
+    private static LocationListener passiveListener;
+
+    /** Listener for the location only, the provider callbacks are not used */
+    private abstract static class Listener implements LocationListener {
+        @Deprecated
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+    }
 
     static void stopLocation(Context context){
         LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-        if (locationListenerGPS!=null) locationManager.removeUpdates(locationListenerGPS);
-        locationListenerGPS=null;
+        stopActive(locationManager);
+        if (passiveListener!=null) locationManager.removeUpdates(passiveListener);
+        passiveListener=null;
     }
 
     static void requestLocation(Context context, SoundClassifier soundClassifier) {
         oldLocation = null;
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED && checkLocationProvider(context)) {
-            LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-            if (locationListenerGPS==null) locationListenerGPS = new LocationListener() {
+        stableLocation = null;
+        sameCellFixes = 0;
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) return;
+        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+
+        Location lastKnown = lastKnownLocation(locationManager);
+        if (lastKnown != null) {
+            Log.i(TAG, "Starting from last known location of " + lastKnown.getProvider());
+            deliver(lastKnown, soundClassifier);
+        }
+
+        if (passiveListener==null) {
+            passiveListener = new Listener() {
                 @Override
                 public void onLocationChanged(Location location) {
-                    Location roundLoc = new Location(location);
-                    roundLoc.setLatitude(Math.round(location.getLatitude() * 100.0) / 100.0);
-                    roundLoc.setLongitude(Math.round(location.getLongitude() * 100.0) / 100.0);
-                    if (oldLocation == null ||
-                            (roundLoc.getLatitude() != oldLocation.getLatitude()) ||
-                            (roundLoc.getLongitude() != oldLocation.getLongitude())){
-
-                        oldLocation = roundLoc;
-                        soundClassifier.runMetaInterpreter(roundLoc);
+                    deliver(location, soundClassifier);
+                    if (activeListener == null && stableLocation != null && location.distanceTo(stableLocation) > MOTION_METERS) {
+                        Log.i(TAG, "Moved " + Math.round(location.distanceTo(stableLocation)) + " m, resuming updates");
+                        stableLocation = null;
+                        sameCellFixes = 0;
+                        startActive(locationManager, soundClassifier);
                     }
                 }
+            };
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, MIN_TIME_MILLIS, PASSIVE_MIN_DISTANCE_METERS, passiveListener);
+        }
+        startActive(locationManager, soundClassifier);
+    }
 
-                @Deprecated
-                @Override
-                public void onStatusChanged(String provider, int status, Bundle extras) {
-                }
+    /** Most recent last known location of all providers, null if there is none */
+    private static Location lastKnownLocation(LocationManager locationManager) {
+        Location best = null;
+        for (String provider : new String[]{LocationManager.NETWORK_PROVIDER, LocationManager.GPS_PROVIDER, LocationManager.PASSIVE_PROVIDER}) {
+            Location location = locationManager.getLastKnownLocation(provider);
+            if (location != null && (best == null || location.getElapsedRealtimeNanos() > best.getElapsedRealtimeNanos())) best = location;
+        }
+        return best;
+    }
 
-                @Override
-                public void onProviderEnabled(String provider) {
+    /** Request updates from the network provider, from GPS if it is disabled */
+    private static void startActive(LocationManager locationManager, SoundClassifier soundClassifier) {
+        if (activeListener != null) return;
+        String provider;
+        if (locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) provider = LocationManager.NETWORK_PROVIDER;
+        else if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) provider = LocationManager.GPS_PROVIDER;
+        else {
+            Log.i(TAG, "No location provider enabled, using passive updates only");
+            return;
+        }
+        activeListener = new Listener() {
+            @Override
+            public void onLocationChanged(Location location) {
+                Location previous = oldLocation;
+                deliver(location, soundClassifier);
+                if (location.hasAccuracy() && location.getAccuracy() > MAX_ACCURACY_METERS) return;
+                sameCellFixes = previous != null && oldLocation == previous ? sameCellFixes + 1 : 1;
+                if (sameCellFixes >= STABLE_FIXES) {
+                    Log.i(TAG, "Stable location, stopping " + location.getProvider() + " updates");
+                    stableLocation = location;
+                    stopActive(locationManager);
                 }
+            }
+        };
+        // No minimum distance, the fixes of a stationary device are what makes the location stable
+        locationManager.requestLocationUpdates(provider, MIN_TIME_MILLIS, 0f, activeListener);
+        Log.i(TAG, "Requesting " + provider + " updates");
+    }
 
-                @Override
-                public void onProviderDisabled(String provider) {
-                }
-            };
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 5000, 0, locationListenerGPS);
-        }
+    private static void stopActive(LocationManager locationManager) {
+        if (activeListener!=null) locationManager.removeUpdates(activeListener);
+        activeListener=null;
     }
 
-    public static boolean checkLocationProvider(Context context) {
-        LocationManager locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
-        if (!locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)){
-            Toast.makeText(context, "Error no GPS", Toast.LENGTH_SHORT).show();
-            return false;
-        } else {
-            return true;
+    /** Pass the location rounded to the meta model cell to the classifier if the cell changed */
+    private static void deliver(Location location, SoundClassifier soundClassifier) {
+        Location roundLoc = new Location(location);
+        roundLoc.setLatitude(Math.round(location.getLatitude() * 100.0) / 100.0);
+        roundLoc.setLongitude(Math.round(location.getLongitude() * 100.0) / 100.0);
+        if (oldLocation == null ||
+                (roundLoc.getLatitude() != oldLocation.getLatitude()) ||
+                (roundLoc.getLongitude() != oldLocation.getLongitude())){
+
+            oldLocation = roundLoc;
+            soundClassifier.runMetaInterpreter(roundLoc);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+package org.tensorflow.lite.examples.soundclassifier
+
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import android.view.View
+import android.widget.Toast
+import androidx.appcompat.app.AlertDialog
+import androidx.appcompat.app.AppCompatActivity
+import androidx.core.content.ContextCompat
+import org.tensorflow.lite.examples.soundclassifier.databinding.ActivityLtsaBinding
+import java.io.File
+import java.io.IOException
+import java.text.DateFormat
+
+/** Viewer for the long-term spectral averages recorded by [LtsaRecorder], with detection markers */
+class LtsaActivity : AppCompatActivity() {
+
+    private lateinit var binding: ActivityLtsaBinding
+    private var files: List<File> = emptyList()
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        binding = ActivityLtsaBinding.inflate(layoutInflater)
+        setContentView(binding.root)
+
+        binding.ltsaView.setOnMarkerClickListener { observation ->
+            val time = DateFormat.getTimeInstance(DateFormat.SHORT).format(observation.millis)
+            Toast.makeText(this, time + "  " + observation.name + "  " + Math.round(observation.probability * 100.0) + "%", Toast.LENGTH_SHORT).show()
+            WavUtils.playWaveFile(this, observation.millis)
+        }
+
+        files = LtsaRecorder.getLtsaDirectory(this).listFiles { file -> file.name.endsWith(LtsaFile.EXTENSION) }
+            ?.sortedByDescending { it.name }
+            ?: emptyList()
+        if (files.isEmpty()) {
+            binding.ltsaDate.setText(R.string.ltsa_empty)
+        } else {
+            load(files.first())
+        }
+    }
+
+    fun selectFile(view: View) {
+        if (files.size < 2) return
+        val df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT)
+        val names = files.map { df.format(it.name.removeSuffix(LtsaFile.EXTENSION).toLongOrNull() ?: 0L) }.toTypedArray()
+        AlertDialog.Builder(this)
+            .setTitle(getString(R.string.ltsa))
+            .setItems(names) { _, which -> load(files[which]) }
+            .create().show()
+    }
+
+    private fun load(file: File) {
+        binding.ltsaDate.text = ""
+        val palette = LtsaFile.palette(
+            ContextCompat.getColor(this, R.color.dark_blue_gray700),
+            ContextCompat.getColor(this, R.color.orange500),
+            ContextCompat.getColor(this, android.R.color.white)
+        )
+        val thresholds = SpeciesThresholds.current(this)
+        Thread {
+            try {
+                val ltsa = LtsaFile.read(file)
+                val bitmap = ltsa.toBitmap(palette, LtsaFile.DB_MIN + 20f, LtsaFile.DB_MAX - 20f)
+                val markers = BirdDBHelper.getInstance(this).getBirdObservations(ltsa.startMillis, ltsa.endMillis, thresholds)
+                Handler(Looper.getMainLooper()).post {
+                    if (isFinishing) return@post
+                    val df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT)
+                    binding.ltsaDate.text = df.format(ltsa.startMillis) + " - " + DateFormat.getTimeInstance(DateFormat.SHORT).format(ltsa.endMillis)
+                    binding.ltsaInfo.text = getString(R.string.ltsa_info, ltsa.secondsPerColumn, ltsa.maxFrequency / 1000, markers.size)
+                    binding.ltsaView.setData(ltsa, bitmap, markers)
+                }
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to read " + file, e)
+                Handler(Looper.getMainLooper()).post {
+                    Toast.makeText(this, getString(R.string.error_reading_file), Toast.LENGTH_SHORT).show()
+                }
+            }
+        }.start()
+    }
+
+    companion object {
+        private const val TAG = "LtsaActivity"
+    }
+}
@@ -0,0 +1,147 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compact on-disk long-term spectral average.
+ * <p>
+ * Little-endian header (magic "LTSA", version, sample rate, FFT size, bins, seconds per column, start millis,
+ * dB range) followed by the columns, each with one byte per bin (lowest frequency first) mapping linearly to the dB range.
+ */
+public class LtsaFile {
+    public static final String EXTENSION = ".ltsa";
+    public static final float DB_MIN = -120f;  // dB relative to 16-bit full scale
+    public static final float DB_MAX = 0f;
+    private static final int MAGIC = 0x4153544C;  // "LTSA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+
+    private final int sampleRate;
+    private final int fftSize;
+    private final int bins;
+    private final int secondsPerColumn;
+    private final long startMillis;
+    private final float dbMin;
+    private final float dbMax;
+    private final byte[] data;
+    private final int columns;
+
+    private LtsaFile(ByteBuffer header, byte[] data) {
+        sampleRate = header.getInt();
+        fftSize = header.getInt();
+        bins = header.getInt();
+        secondsPerColumn = header.getInt();
+        startMillis = header.getLong();
+        dbMin = header.getFloat();
+        dbMax = header.getFloat();
+        this.data = data;
+        columns = bins > 0 ? data.length / bins : 0;
+    }
+
+    static byte[] header(int sampleRate, int fftSize, int bins, int secondsPerColumn, long startMillis) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putInt(sampleRate).putInt(fftSize).putInt(bins).putInt(secondsPerColumn);
+        header.putLong(startMillis);
+        header.putFloat(DB_MIN).putFloat(DB_MAX);
+        return header.array();
+    }
+
+    /** Quantize a level in dB to the byte stored per bin */
+    static byte quantize(float db) {
+        float v = (db - DB_MIN) / (DB_MAX - DB_MIN) * 255f;
+        return (byte) Math.round(Math.max(0f, Math.min(255f, v)));
+    }
+
+    /** Read a complete LTSA file, a partly written last column (recording still running) is ignored */
+    public static LtsaFile read(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] headerBytes = new byte[HEADER_SIZE];
+            in.readFully(headerBytes);
+            ByteBuffer header = ByteBuffer.wrap(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) throw new IOException("Not an LTSA file: " + file);
+            int bins = header.getInt(16);
+            if (bins <= 0) throw new IOException("Invalid LTSA file: " + file);
+            long length = in.length() - HEADER_SIZE;
+            byte[] data = new byte[(int) (length - length % bins)];
+            in.readFully(data);
+            return new LtsaFile(header, data);
+        }
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public int getSecondsPerColumn() {
+        return secondsPerColumn;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getEndMillis() {
+        return startMillis + (long) columns * secondsPerColumn * 1000;
+    }
+
+    /** Frequency at the upper edge of the spectrum */
+    public int getMaxFrequency() {
+        return sampleRate / 2;
+    }
+
+    /** Level in dB of a bin */
+    public float getLevel(int column, int bin) {
+        return dbMin + (data[column * bins + bin] & 0xFF) * (dbMax - dbMin) / 255f;
+    }
+
+    /**
+     * Render the LTSA with one pixel per column and bin, highest frequency at the top.
+     * Levels between dbFloor and dbCeiling are mapped to the palette.
+     */
+    public Bitmap toBitmap(int[] palette, float dbFloor, float dbCeiling) {
+        int width = Math.max(1, columns);
+        int[] pixels = new int[width * bins];
+        int[] lookup = new int[256];
+        for (int v = 0; v < 256; v++) {
+            float db = dbMin + v * (dbMax - dbMin) / 255f;
+            int index = Math.round((db - dbFloor) / (dbCeiling - dbFloor) * (palette.length - 1));
+            lookup[v] = palette[Math.max(0, Math.min(palette.length - 1, index))];
+        }
+        for (int c = 0; c < columns; c++) {
+            int offset = c * bins;
+            for (int b = 0; b < bins; b++) {
+                pixels[(bins - 1 - b) * width + c] = lookup[data[offset + b] & 0xFF];
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, bins, Bitmap.Config.ARGB_8888);
+    }
+
+    /** 256 entry palette interpolating linearly between the given colors */
+    public static int[] palette(int... colors) {
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            float position = i / 255f * (colors.length - 1);
+            int index = Math.min((int) position, colors.length - 2);
+            float t = position - index;
+            int a = colors[index];
+            int b = colors[index + 1];
+            palette[i] = Color.rgb(
+                    Math.round(Color.red(a) + (Color.red(b) - Color.red(a)) * t),
+                    Math.round(Color.green(a) + (Color.green(b) - Color.green(a)) * t),
+                    Math.round(Color.blue(a) + (Color.blue(b) - Color.blue(a)) * t));
+        }
+        return palette;
+    }
+}
@@ -0,0 +1,126 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Builds a long-term spectral average (LTSA) of the capture stream while monitoring.
+ * <p>
+ * Non-overlapping FFT frames are averaged over secondsPerColumn and each column is appended to an
+ * {@link LtsaFile} as one quantized byte per frequency bin, so a whole day only needs a few hundred KB.
+ * Column boundaries are counted in stream samples, dropped samples included, so column n always starts
+ * n * secondsPerColumn after the start. Columns without any frame, i.e. inside a gap, are written at DB_MIN.
+ */
+public class LtsaRecorder extends AudioConsumer {
+    public static final String TAG = "LtsaRecorder";
+    public static final int FFT_SIZE = 512;
+    private static final long DRAIN_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final Context context;
+    private final int sampleRate;
+    private final int secondsPerColumn;
+    private final long samplesPerColumn;
+    private final Fft fft = new Fft(FFT_SIZE);
+    private final short[] frame = new short[FFT_SIZE];
+    private final float[] power = new float[FFT_SIZE / 2];
+    private final double[] powerSum = new double[FFT_SIZE / 2];
+    private final byte[] column = new byte[FFT_SIZE / 2];
+
+    private long startMillis;
+    private int frameFill;
+    private int frameCount;
+    private int columnCount;
+    /** Stream position after the latest sample, in samples since the start */
+    private long position;
+    private FileOutputStream out;
+
+    public LtsaRecorder(Context context, int sampleRate, int secondsPerColumn) {
+        super(TAG, sampleRate * 4, sampleRate, DRAIN_INTERVAL_NANOS);
+        this.context = context.getApplicationContext();
+        this.sampleRate = sampleRate;
+        this.secondsPerColumn = Math.max(1, secondsPerColumn);
+        this.samplesPerColumn = (long) sampleRate * this.secondsPerColumn;
+    }
+
+    public static File getLtsaDirectory(Context context) {
+        return new File(context.getFilesDir(), "ltsa");
+    }
+
+    /** Start a new LTSA file, the first column begins at startMillis. */
+    public synchronized boolean start(long startMillis) {
+        this.startMillis = startMillis;
+        return start();
+    }
+
+    @Override
+    protected void onStart() throws IOException {
+        File path = getLtsaDirectory(context);
+        if (!path.exists() && !path.mkdirs()) throw new IOException("Failed to make directory: " + path);
+        File file = new File(path, startMillis + LtsaFile.EXTENSION);
+        out = new FileOutputStream(file);
+        out.write(LtsaFile.header(sampleRate, FFT_SIZE, fft.bins(), secondsPerColumn, startMillis));
+        frameFill = 0;
+        frameCount = 0;
+        columnCount = 0;
+        position = 0;
+        Log.d(TAG, "Opened " + file.getAbsolutePath());
+    }
+
+    @Override
+    protected void process(short[] samples, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            int chunk = Math.min(count - offset, FFT_SIZE - frameFill);
+            System.arraycopy(samples, offset, frame, frameFill, chunk);
+            frameFill += chunk;
+            offset += chunk;
+            position += chunk;
+            if (frameFill < FFT_SIZE) break;
+            frameFill = 0;
+            fft.powerSpectrum(frame, 0, power);
+            for (int i = 0; i < power.length; i++) powerSum[i] += power[i];
+            frameCount++;
+            // A frame belongs to the column it ends in or just after
+            if (position >= columnEnd()) writeColumn();
+        }
+    }
+
+    @Override
+    protected void onDropped(long count) throws IOException {
+        Log.w(TAG, "Gap of " + count + " samples");
+        // The partial frame is not contiguous with what follows
+        frameFill = 0;
+        position += count;
+        while (position >= columnEnd()) writeColumn();
+    }
+
+    private long columnEnd() {
+        return (columnCount + 1) * samplesPerColumn;
+    }
+
+    private void writeColumn() throws IOException {
+        for (int i = 0; i < column.length; i++) {
+            column[i] = frameCount > 0 ? LtsaFile.quantize((float) (10 * Math.log10(powerSum[i] / frameCount + 1e-20))) : LtsaFile.quantize(LtsaFile.DB_MIN);
+            powerSum[i] = 0;
+        }
+        frameCount = 0;
+        out.write(column);
+        columnCount++;
+    }
+
+    @Override
+    protected void onStop() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing LTSA file", e);
+        }
+        out = null;
+        Log.d(TAG, "Wrote " + columnCount + " columns");
+    }
+}
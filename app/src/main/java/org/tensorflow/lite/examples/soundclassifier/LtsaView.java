@@ -0,0 +1,110 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows an {@link LtsaFile} with markers at the times of detections.
+ * The view is as wide as the LTSA (columnWidth per column) and is meant to be placed in a HorizontalScrollView.
+ */
+public class LtsaView extends View {
+
+    public interface OnMarkerClickListener {
+        void onMarkerClick(BirdObservation observation);
+    }
+
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint markerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect src = new Rect();
+    private final Rect dst = new Rect();
+    private final float columnWidth;
+    private final float touchSlop;
+
+    private LtsaFile ltsa;
+    private Bitmap bitmap;
+    private List<BirdObservation> markers = new ArrayList<>();
+    private OnMarkerClickListener listener;
+
+    public LtsaView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        columnWidth = 2 * density;
+        touchSlop = 12 * density;
+        markerPaint.setColor(ContextCompat.getColor(context, R.color.orange500));
+        markerPaint.setStrokeWidth(density);
+    }
+
+    public void setData(LtsaFile ltsa, Bitmap bitmap, List<BirdObservation> markers) {
+        this.ltsa = ltsa;
+        this.bitmap = bitmap;
+        this.markers = markers;
+        requestLayout();
+        invalidate();
+    }
+
+    public void setOnMarkerClickListener(OnMarkerClickListener listener) {
+        this.listener = listener;
+    }
+
+    private float xOf(long millis) {
+        return (millis - ltsa.getStartMillis()) / (ltsa.getSecondsPerColumn() * 1000f) * columnWidth;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = ltsa == null ? 0 : Math.round(ltsa.getColumnCount() * columnWidth);
+        setMeasuredDimension(resolveSize(width, widthMeasureSpec), getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (ltsa == null || bitmap == null) return;
+        src.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        dst.set(0, 0, Math.round(ltsa.getColumnCount() * columnWidth), getHeight());
+        canvas.drawBitmap(bitmap, src, dst, bitmapPaint);
+        for (BirdObservation observation : markers) {
+            float x = xOf(observation.getMillis());
+            canvas.drawLine(x, 0, x, getHeight() * 0.15f, markerPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (listener == null || ltsa == null) return super.onTouchEvent(event);
+        if (event.getAction() == MotionEvent.ACTION_DOWN) return true;
+        if (event.getAction() == MotionEvent.ACTION_UP) {
+            BirdObservation nearest = null;
+            float nearestDistance = touchSlop;
+            for (BirdObservation observation : markers) {
+                float distance = Math.abs(xOf(observation.getMillis()) - event.getX());
+                if (distance <= nearestDistance) {
+                    nearest = observation;
+                    nearestDistance = distance;
+                }
+            }
+            if (nearest != null) {
+                listener.onMarkerClick(nearest);
+                performClick();
+            }
+            return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+}
@@ -23,7 +23,9 @@ import android.content.pm.PackageManager
 import android.net.Uri
 import android.os.Build
 import android.os.Bundle
+import android.os.SystemClock
 import android.util.DisplayMetrics
+import android.util.Log
 import android.view.Menu
 import android.view.MenuItem
 import android.view.View
@@ -43,9 +45,11 @@ class MainActivity : AppCompatActivity() {
   private lateinit var binding: ActivityMainBinding
 
   override fun onCreate(savedInstanceState: Bundle?) {
+    val t0 = SystemClock.elapsedRealtime()
     super.onCreate(savedInstanceState)
     binding = ActivityMainBinding.inflate(layoutInflater)
     setContentView(binding.root)
+    binding.root.post { Log.i(TAG, "Time to first frame: ${SystemClock.elapsedRealtime() - t0} ms") }
 
     //Set aspect ratio for webview and icon
     val width = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
@@ -61,8 +65,17 @@ class MainActivity : AppCompatActivity() {
     val paramsIcon: ViewGroup.LayoutParams = binding.icon.getLayoutParams() as ViewGroup.LayoutParams
     paramsIcon.height = (width / 1.8f).toInt()
 
-    soundClassifier = SoundClassifier(this, binding, SoundClassifier.Options())
     binding.gps.setText(getString(R.string.latitude)+": --.-- / " + getString(R.string.longitude) + ": --.--" )
+    soundClassifier = SoundClassifier.getInstance(this)
+    soundClassifier.attach(binding)
+    if (soundClassifier.isReady) {
+      reportFullyDrawn()
+    } else {
+      soundClassifier.onReady = {
+        Log.i(TAG, "Time to classifier ready: ${SystemClock.elapsedRealtime() - t0} ms")
+        reportFullyDrawn()
+      }
+    }
     binding.webview.setWebViewClient(object : MlWebViewClient(this) {})
     binding.webview.settings.setDomStorageEnabled(true)
     binding.webview.settings.setJavaScriptEnabled(true)
@@ -130,6 +143,9 @@ class MainActivity : AppCompatActivity() {
   override fun onResume() {
     super.onResume()
     LocationHelper.requestLocation(this, soundClassifier)
+    val sharedPref = PreferenceManager.getDefaultSharedPreferences(this)
+    binding.spectrogram.visibility = if (sharedPref.getBoolean("show_spectrogram", false)) View.VISIBLE else View.GONE
+    binding.spectrogram.setHighPass(sharedPref.getInt("high_pass", 0) / (SoundClassifier.Options().sampleRate / 2f))
     if (!checkLocationPermission()){
       Toast.makeText(this, this.resources.getString(R.string.error_location_permission), Toast.LENGTH_SHORT).show()
     }
@@ -144,7 +160,12 @@ class MainActivity : AppCompatActivity() {
   override fun onPause() {
     super.onPause()
     LocationHelper.stopLocation(this)
-    if (soundClassifier.isRecording) soundClassifier.stop()
+    soundClassifier.stop()
+  }
+
+  override fun onDestroy() {
+    super.onDestroy()
+    soundClassifier.detach(binding)
   }
 
   private fun checkMicrophonePermission(): Boolean {
@@ -183,6 +204,7 @@ class MainActivity : AppCompatActivity() {
     }
 
   companion object {
+    private const val TAG = "MainActivity"
     const val REQUEST_PERMISSIONS = 1337
   }
 
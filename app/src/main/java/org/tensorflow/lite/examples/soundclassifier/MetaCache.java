@@ -0,0 +1,195 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cache of the meta model weights per location cell, a table of all model weeks by species.
+ * <p>
+ * The weights are quantized to 0, 0.5, 0.8 and 1 by SoundClassifier.metaWeight(), so they are stored
+ * with 2 bits per species, 1.6 kB per week and 78 kB per cell for all classes. Recent entries are kept in memory,
+ * all entries in the cache directory, both evicted least recently used first. The directory depends on the meta
+ * model, entries of another model are deleted.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class MetaCache {
+    private static final String TAG = "MetaCache";
+    public static final int WEEKS = 48;
+    private static final int MEMORY_ENTRIES = 8;
+    private static final int DISK_ENTRIES = 128;
+    private static final String SUFFIX = ".bin";
+    // weight of each 2 bit code
+    private static final float[] WEIGHTS = {0f, 0.5f, 0.8f, 1f};
+
+    private final File dir;
+    private final int weekSize;
+    private final Map<Long, byte[]> memory = new LinkedHashMap<Long, byte[]>(MEMORY_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+    private int diskEntries;
+    private int memoryHits = 0;
+    private int diskHits = 0;
+    private int misses = 0;
+
+    /** @param modelMd5 MD5 of the meta model the weights come from */
+    public MetaCache(Context context, String modelMd5, int numClasses) {
+        String name = "meta_" + modelMd5.substring(0, 8) + "_" + WEEKS;
+        File[] stale = context.getCacheDir().listFiles((d, n) -> n.startsWith("meta_") && !n.equals(name));
+        if (stale != null) for (File old : stale) deleteDir(old);
+        this.dir = new File(context.getCacheDir(), name);
+        dir.mkdirs();
+        this.weekSize = weekSize(numClasses);
+        String[] files = dir.list();
+        this.diskEntries = files != null ? files.length : 0;
+    }
+
+    /** Key of a location, rounded to 0.01 degrees */
+    public static long key(float lat, float lon) {
+        long latCell = Math.round(lat * 100.0) + 9000;
+        long lonCell = Math.round(lon * 100.0) + 18000;
+        return latCell << 24 | lonCell;
+    }
+
+    /** New empty table for {@link #pack} */
+    public byte[] newTable() {
+        return new byte[WEEKS * weekSize];
+    }
+
+    /** Bytes of the weights of one week */
+    public static int weekSize(int numClasses) {
+        return (numClasses + 3) / 4;
+    }
+
+    /** The cached table of a cell, null if there is none. Do not modify. */
+    public synchronized byte[] get(long key) {
+        byte[] table = memory.get(key);
+        if (table != null) {
+            memoryHits++;
+        } else {
+            table = read(key);
+            if (table == null) {
+                misses++;
+                logStats();
+                return null;
+            }
+            diskHits++;
+            memory.put(key, table);
+        }
+        logStats();
+        return table;
+    }
+
+    public synchronized void put(long key, byte[] table) {
+        memory.put(key, table);
+        write(key, table);
+    }
+
+    /** Share of lookups answered without running the meta model */
+    public synchronized float getHitRate() {
+        int lookups = memoryHits + diskHits + misses;
+        return lookups == 0 ? 0f : (memoryHits + diskHits) / (float) lookups;
+    }
+
+    private void logStats() {
+        Log.d(TAG, String.format(Locale.ROOT, "hit rate %.0f%% (memory %d, disk %d, misses %d), %d entries on disk",
+                100 * getHitRate(), memoryHits, diskHits, misses, diskEntries));
+    }
+
+    private File file(long key) {
+        return new File(dir, Long.toHexString(key) + SUFFIX);
+    }
+
+    private byte[] read(long key) {
+        File file = file(key);
+        if (!file.exists()) return null;
+        byte[] packed = newTable();
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            int n;
+            while (offset < packed.length && (n = in.read(packed, offset, packed.length - offset)) > 0) offset += n;
+            if (offset != packed.length || in.read() != -1) throw new IOException("Unexpected size " + file.length());
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping " + file.getName() + ": " + e.getMessage());
+            if (file.delete()) diskEntries--;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return packed;
+    }
+
+    private void write(long key, byte[] packed) {
+        File file = file(key);
+        boolean added = !file.exists();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(packed);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file.getName(), e);
+            file.delete();
+            return;
+        }
+        if (added && ++diskEntries > DISK_ENTRIES) trim();
+    }
+
+    /** Delete the least recently used quarter of the files */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long[] lastModified = new long[files.length];
+        for (int i = 0; i < files.length; i++) lastModified[i] = files[i].lastModified();
+        long[] sorted = lastModified.clone();
+        Arrays.sort(sorted);
+        long limit = sorted[files.length - DISK_ENTRIES * 3 / 4];
+        int deleted = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (lastModified[i] < limit && files[i].delete()) deleted++;
+        }
+        diskEntries = files.length - deleted;
+        Log.i(TAG, "Trimmed " + deleted + " entries");
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    /** Store the weights of a model week, 1 to WEEKS, in table */
+    public static void pack(float[] weights, byte[] table, int week) {
+        int weekSize = weekSize(weights.length);
+        int offset = (week - 1) * weekSize;
+        Arrays.fill(table, offset, offset + weekSize, (byte) 0);
+        for (int i = 0; i < weights.length; i++) {
+            table[offset + (i >> 2)] |= code(weights[i]) << ((i & 3) * 2);
+        }
+    }
+
+    /** Copy the weights of a model week, 1 to WEEKS, from table */
+    public static void unpack(byte[] table, int week, float[] weights) {
+        int offset = (week - 1) * weekSize(weights.length);
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = WEIGHTS[(table[offset + (i >> 2)] >> ((i & 3) * 2)) & 3];
+        }
+    }
+
+    /** 2 bit code of a weight, 0 for weight 0 */
+    static int code(float weight) {
+        if (weight >= 1f) return 3;
+        if (weight >= 0.8f) return 2;
+        if (weight >= 0.5f) return 1;
+        return 0;
+    }
+}
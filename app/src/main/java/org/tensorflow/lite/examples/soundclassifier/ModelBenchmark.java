@@ -0,0 +1,208 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times the model variants with each thread count and with or without XNNPACK on synthetic audio, then picks the
+ * fastest configuration that fits the CPU budget. The selection is stored in the preferences and used by
+ * {@link #interpreterOptions(Context)}.
+ */
+public class ModelBenchmark {
+    private static final String TAG = "ModelBenchmark";
+    private static final int WARMUP_RUNS = 1;
+    private static final int RUNS = 8;
+    private static final int[] THREADS = {1, 2, 4};
+    private static final long INFERENCE_INTERVAL_MILLIS = 800;
+    // share of one core over an inference interval the model may use
+    private static final float CPU_BUDGET = 0.5f;
+    // share of the inference interval the 90th percentile latency may take
+    private static final float LATENCY_BUDGET = 0.75f;
+
+    // separate from the model_variant setting, which is the choice of the user
+    public static final String PREF_VARIANT = "benchmark_variant";
+    public static final String PREF_THREADS = "model_threads";
+    public static final String PREF_XNNPACK = "model_xnnpack";
+    private static final String PREF_P50 = "model_benchmark_p50";
+    private static final String PREF_P90 = "model_benchmark_p90";
+    private static final String PREF_MEMORY = "model_benchmark_memory";
+
+    public static class Result {
+        public final String variant;
+        public final File file;
+        public final int threads;
+        public final boolean xnnpack;
+        public final float p50Millis;
+        public final float p90Millis;
+        public final long memoryBytes;
+
+        Result(String variant, File file, int threads, boolean xnnpack, float p50Millis, float p90Millis, long memoryBytes) {
+            this.variant = variant;
+            this.file = file;
+            this.threads = threads;
+            this.xnnpack = xnnpack;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.memoryBytes = memoryBytes;
+        }
+
+        /** Approximate CPU time per inference, all threads busy */
+        float cpuMillis() {
+            return p50Millis * threads;
+        }
+
+        boolean fitsBudget() {
+            return cpuMillis() <= CPU_BUDGET * INFERENCE_INTERVAL_MILLIS && p90Millis <= LATENCY_BUDGET * INFERENCE_INTERVAL_MILLIS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s, %d threads, XNNPACK %b: p50 %.1f ms, p90 %.1f ms, %d kB",
+                    variant, threads, xnnpack, p50Millis, p90Millis, memoryBytes / 1024);
+        }
+    }
+
+    /**
+     * Time all configurations of the given variants. Slow, call off the main thread.
+     * @param variants variant names, e.g. "FP16"
+     * @param files model file of each variant
+     */
+    public static List<Result> run(String[] variants, File[] files) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Result> results = new ArrayList<>();
+        for (int v = 0; v < variants.length; v++) {
+            ByteBuffer model;
+            try (FileChannel channel = FileChannel.open(files[v].toPath(), StandardOpenOption.READ)) {
+                model = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to map " + files[v].getName(), e);
+                continue;
+            }
+            for (int threads : THREADS) {
+                if (threads > cores) continue;
+                for (boolean xnnpack : new boolean[]{false, true}) {
+                    Result result = time(variants[v], files[v], model, threads, xnnpack);
+                    Log.i(TAG, result.toString());
+                    results.add(result);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static Result time(String variant, File file, ByteBuffer model, int threads, boolean xnnpack) {
+        long nativeHeap = Debug.getNativeHeapAllocatedSize();
+        Interpreter interpreter = new Interpreter(model, new Interpreter.Options().setNumThreads(threads).setUseXNNPACK(xnnpack));
+        try {
+            int inputLength = interpreter.getInputTensor(0).shape()[1];
+            FloatBuffer input = syntheticAudio(inputLength);
+            FloatBuffer output = FloatBuffer.allocate(interpreter.getOutputTensor(0).shape()[1]);
+            float[] millis = new float[RUNS];
+            for (int i = -WARMUP_RUNS; i < RUNS; i++) {
+                input.rewind();
+                output.rewind();
+                long t0 = SystemClock.elapsedRealtimeNanos();
+                interpreter.run(input, output);
+                if (i >= 0) millis[i] = (SystemClock.elapsedRealtimeNanos() - t0) / 1e6f;
+            }
+            long memory = Math.max(0, Debug.getNativeHeapAllocatedSize() - nativeHeap);
+            Arrays.sort(millis);
+            return new Result(variant, file, threads, xnnpack, percentile(millis, 50), percentile(millis, 90), memory);
+        } finally {
+            interpreter.close();
+        }
+    }
+
+    /** Percentile of sorted values, nearest rank */
+    static float percentile(float[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    /** Noise with rising chirps, in the 16 bit sample range the classifier is fed with */
+    private static FloatBuffer syntheticAudio(int length) {
+        Random random = new Random(42);
+        FloatBuffer audio = FloatBuffer.allocate(length);
+        double phase = 0;
+        for (int i = 0; i < length; i++) {
+            double t = (i % 24000) / 24000.0;  // 0.5 s chirps at 48 kHz
+            phase += 2 * Math.PI * (2000 + 4000 * t) / 48000;
+            audio.put(i, (float) (1000 * random.nextGaussian() + 8000 * Math.sin(phase)));
+        }
+        return audio;
+    }
+
+    /** Fastest configuration within the CPU budget, the cheapest one if none fits. Null if results is empty. */
+    public static Result select(List<Result> results) {
+        Result best = null;
+        for (Result result : results) {
+            if (best == null) {
+                best = result;
+            } else if (result.fitsBudget() != best.fitsBudget()) {
+                if (result.fitsBudget()) best = result;
+            } else if (result.fitsBudget() ? result.p50Millis < best.p50Millis : result.cpuMillis() < best.cpuMillis()) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    /** Store the selection, the variant only if it is one of the model_variant values */
+    public static void store(Context context, Result result) {
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        if (Arrays.asList(context.getResources().getStringArray(R.array.model_variant_values)).contains(result.variant)) {
+            editor.putString(PREF_VARIANT, result.variant);
+        } else {
+            editor.remove(PREF_VARIANT);
+        }
+        editor.putInt(PREF_THREADS, result.threads)
+                .putBoolean(PREF_XNNPACK, result.xnnpack)
+                .putFloat(PREF_P50, result.p50Millis)
+                .putFloat(PREF_P90, result.p90Millis)
+                .putLong(PREF_MEMORY, result.memoryBytes)
+                .apply();
+    }
+
+    /** Interpreter options of the stored selection, TFLite defaults if no benchmark was run */
+    public static Interpreter.Options interpreterOptions(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Interpreter.Options options = new Interpreter.Options();
+        if (prefs.contains(PREF_THREADS)) {
+            options.setNumThreads(prefs.getInt(PREF_THREADS, 1));
+            options.setUseXNNPACK(prefs.getBoolean(PREF_XNNPACK, false));
+        }
+        return options;
+    }
+
+    /** Summary of the stored selection for the settings, null if no benchmark was run */
+    public static String describe(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.contains(PREF_THREADS)) return null;
+        return context.getString(R.string.model_benchmark_result,
+                prefs.getString(PREF_VARIANT, ""),
+                prefs.getInt(PREF_THREADS, 1),
+                prefs.getBoolean(PREF_XNNPACK, false) ? "XNNPACK" : "TFLite",
+                Math.round(prefs.getFloat(PREF_P50, 0f)),
+                Math.round(prefs.getFloat(PREF_P90, 0f)),
+                prefs.getLong(PREF_MEMORY, 0) / (1024 * 1024));
+    }
+}
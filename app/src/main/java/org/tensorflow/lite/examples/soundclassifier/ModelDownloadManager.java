@@ -0,0 +1,398 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads model files, at most MAX_PARALLEL at a time.
+ * <p>
+ * Data is written to a .part file next to the target and hashed while it is written. An interrupted download is
+ * resumed with an HTTP Range request, up to MAX_ATTEMPTS times per file and again on the next start. A complete file
+ * is checked against the expected MD5 and then renamed to the target, so the target either is absent or verified.
+ * A download with a patch first tries to build the target from a local base file, see {@link ModelPatch}.
+ * The sizes of all files are requested before the first download starts, so the overall progress only grows.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class ModelDownloadManager {
+    private static final String TAG = "ModelDownloadManager";
+    private static final String PART_SUFFIX = ".part";
+    private static final int MAX_PARALLEL = 2;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 2000;
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static ModelDownloadManager instance = null;
+
+    private final Context context;
+    private final OkHttpClient client;
+    private final ExecutorService executor;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+
+    public interface Listener {
+        /** Bytes received and expected over all files, called on a download thread */
+        void onProgress(long bytes, long totalBytes);
+        /** Called once on a download thread after the last file finished */
+        void onFinished(boolean success);
+    }
+
+    public static class Download {
+        final String url;
+        final File target;
+        final String[] md5;
+        String patchUrl = null;
+        File base = null;
+        String baseMd5 = null;
+
+        /** @param md5 accepted hashes of the complete file */
+        public Download(String url, File target, String... md5) {
+            this.url = url;
+            this.target = target;
+            this.md5 = md5;
+        }
+
+        /**
+         * Try a {@link ModelPatch} against a local base file first, the full file is downloaded if the patch is
+         * missing or fails
+         */
+        public Download withPatch(String patchUrl, File base, String baseMd5) {
+            this.patchUrl = patchUrl;
+            this.base = base;
+            this.baseMd5 = baseMd5;
+            return this;
+        }
+    }
+
+    public ModelDownloadManager(Context context, OkHttpClient client) {
+        this.context = context.getApplicationContext();
+        this.client = client;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(MAX_PARALLEL, r -> new Thread(r, TAG + "-" + threads.incrementAndGet()));
+    }
+
+    public static synchronized ModelDownloadManager getInstance(Context context) {
+        if (instance == null) {
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .connectTimeout(10, TimeUnit.SECONDS)
+                    .readTimeout(15, TimeUnit.SECONDS)
+                    .retryOnConnectionFailure(true)
+                    .build();
+            instance = new ModelDownloadManager(context, client);
+        }
+        return instance;
+    }
+
+    /** True until the listener of the last start returned from onFinished */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /** Start downloads, returns false if downloads are already running */
+    public boolean start(List<Download> downloads, Listener listener) {
+        if (!running.compareAndSet(false, true)) return false;
+        cancelled = false;
+        if (downloads.isEmpty()) {
+            running.set(false);
+            listener.onFinished(true);
+            return true;
+        }
+        Progress progress = new Progress(downloads.size(), listener);
+        AtomicInteger remaining = new AtomicInteger(downloads.size());
+        AtomicBoolean success = new AtomicBoolean(true);
+        executor.execute(() -> {
+            for (int i = 0; i < downloads.size() && !cancelled; i++) {
+                Download download = downloads.get(i);
+                File part = partFile(download);
+                progress.expect(i, part.exists() ? part.length() : 0, contentLength(download.url));
+            }
+            for (int i = 0; i < downloads.size(); i++) {
+                Download download = downloads.get(i);
+                int index = i;
+                executor.execute(() -> {
+                    boolean ok;
+                    try {
+                        ok = fetch(download, index, progress);
+                    } catch (IOException | InterruptedException e) {
+                        Log.w(TAG, "Download failed: " + download.url, e);
+                        ok = false;
+                    }
+                    if (!ok) success.set(false);
+                    if (remaining.decrementAndGet() == 0) {
+                        try {
+                            listener.onFinished(success.get());
+                        } finally {
+                            running.set(false);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /** Size of the file at url from a HEAD request, 0 if unknown */
+    private long contentLength(String url) {
+        try (Response response = client.newCall(new Request.Builder().url(url).head().build()).execute()) {
+            String length = response.header("Content-Length");
+            return response.isSuccessful() && length != null ? Math.max(0, Long.parseLong(length)) : 0;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "No size for " + url + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** Stop running downloads, their .part files are kept for a later resume */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** Download with retries, true if the target was written and verified */
+    private boolean fetch(Download download, int index, Progress progress) throws IOException, InterruptedException {
+        if (cancelled) throw new InterruptedIOException("Cancelled");
+        File part = partFile(download);
+        if (download.patchUrl != null && !part.exists()) {
+            try {
+                if (fetchPatch(download, index, progress)) return true;
+            } catch (IOException e) {
+                if (cancelled) throw e;
+                Log.w(TAG, "Patch failed for " + download.target.getName() + ", downloading the full file: " + e.getMessage());
+            }
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return fetchOnce(download, part, index, progress);
+            } catch (IOException e) {
+                if (cancelled || attempt == MAX_ATTEMPTS) throw e;
+                Log.w(TAG, "Attempt " + attempt + " failed for " + download.target.getName() + ": " + e.getMessage());
+                Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+            }
+        }
+    }
+
+    /** The .part file depends on the URL, so a partial download is never resumed from another model variant */
+    static File partFile(Download download) {
+        String prefix = download.target.getName() + ".";
+        String name = prefix + Integer.toHexString(download.url.hashCode()) + PART_SUFFIX;
+        File[] stale = download.target.getParentFile().listFiles((dir, n) -> n.startsWith(prefix) && n.endsWith(PART_SUFFIX) && !n.equals(name));
+        if (stale != null) for (File file : stale) file.delete();
+        return new File(download.target.getParentFile(), name);
+    }
+
+    private boolean fetchOnce(Download download, File part, int index, Progress progress) throws IOException {
+        MessageDigest digest = ModelVerifier.newMd5();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long offset = part.exists() ? part.length() : 0;
+        if (offset > 0) {
+            try (InputStream in = new FileInputStream(part)) {
+                int len;
+                while ((len = in.read(buffer)) != -1) digest.update(buffer, 0, len);
+            }
+        }
+        Request.Builder request = new Request.Builder().url(download.url);
+        if (offset > 0) request.header("Range", "bytes=" + offset + "-");
+        try (Response response = client.newCall(request.build()).execute()) {
+            if (response.code() == 416) {  // nothing left to send, the part is complete or not a prefix of the file
+                if (finish(download, part, digest)) return true;
+                throw new IOException("Range not satisfiable, restarting " + download.target.getName());
+            }
+            if (!response.isSuccessful()) throw new IOException("HTTP " + response.code() + " for " + download.url);
+            boolean append = response.code() == 206;
+            if (append && rangeStart(response.header("Content-Range")) != offset) {
+                part.delete();
+                throw new IOException("Unexpected Content-Range " + response.header("Content-Range"));
+            }
+            if (!append && offset > 0) {
+                Log.i(TAG, "Server ignored Range, restarting " + download.target.getName());
+                offset = 0;
+                digest.reset();
+            }
+            if (append) Log.i(TAG, "Resuming " + download.target.getName() + " at " + offset + " bytes");
+            ResponseBody body = response.body();
+            long length = body.contentLength();
+            long total = length < 0 ? -1 : offset + length;
+            progress.start(index, offset, Math.max(0, total));
+            try (InputStream in = body.byteStream(); FileOutputStream out = new FileOutputStream(part, append)) {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    if (cancelled) throw new InterruptedIOException("Cancelled");
+                    out.write(buffer, 0, len);
+                    digest.update(buffer, 0, len);
+                    offset += len;
+                    progress.update(index, offset);
+                }
+                out.getFD().sync();
+            }
+            if (length >= 0 && offset != total) {
+                throw new IOException("Connection closed at " + offset + " of " + total + " bytes");
+            }
+        }
+        if (!finish(download, part, digest)) {
+            Log.w(TAG, download.target.getName() + ": MD5 mismatch");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stream the patch into a file next to the target while it is downloaded. Patches are small and not resumed.
+     * @return false if there is no patch for this base, true if the target was written and verified
+     */
+    private boolean fetchPatch(Download download, int index, Progress progress) throws IOException {
+        String baseMd5 = ModelVerifier.getVerifiedMd5(context, download.base);
+        if (baseMd5 == null && download.base.exists()) baseMd5 = ModelVerifier.md5(download.base);
+        if (!download.baseMd5.equals(baseMd5)) {
+            Log.i(TAG, "Base of " + download.target.getName() + " changed, no patch");
+            return false;
+        }
+        File patched = new File(download.target.getParentFile(), download.target.getName() + ModelPatch.EXTENSION + PART_SUFFIX);
+        try (Response response = client.newCall(new Request.Builder().url(download.patchUrl).build()).execute()) {
+            if (response.code() == 404) {
+                Log.i(TAG, "No patch for " + download.target.getName() + " from " + baseMd5);
+                return false;
+            }
+            if (!response.isSuccessful()) throw new IOException("HTTP " + response.code() + " for " + download.patchUrl);
+            ResponseBody body = response.body();
+            long length = body.contentLength();
+            progress.start(index, 0, Math.max(0, length));
+            String md5;
+            try (InputStream in = new ProgressInputStream(body.byteStream(), index, progress)) {
+                md5 = ModelPatch.apply(download.base, baseMd5, in, patched, download.md5);
+            }
+            if (!patched.renameTo(download.target)) throw new IOException("Failed to rename " + patched.getName());
+            ModelVerifier.markVerified(context, download.target, md5);
+            Log.i(TAG, download.target.getName() + " patched and verified, " + length + " bytes downloaded for " + download.target.length());
+            return true;
+        } finally {
+            patched.delete();
+        }
+    }
+
+    /** Reports the bytes read from a patch, which are fewer than the bytes written */
+    private class ProgressInputStream extends FilterInputStream {
+        private final int index;
+        private final Progress progress;
+        private long bytes = 0;
+
+        ProgressInputStream(InputStream in, int index, Progress progress) {
+            super(in);
+            this.index = index;
+            this.progress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            if (cancelled) throw new InterruptedIOException("Cancelled");
+            bytes += n;
+            progress.update(index, bytes);
+        }
+    }
+
+    /** Check the hash of the complete part file and move it into place. A part with a wrong hash is deleted. */
+    private boolean finish(Download download, File part, MessageDigest digest) throws IOException {
+        String md5 = ModelVerifier.toHex(digest.digest());
+        if (!Arrays.asList(download.md5).contains(md5)) {
+            part.delete();
+            return false;
+        }
+        if (!part.renameTo(download.target)) throw new IOException("Failed to rename " + part.getName());
+        ModelVerifier.markVerified(context, download.target, md5);
+        Log.i(TAG, download.target.getName() + " verified, " + download.target.length() + " bytes");
+        return true;
+    }
+
+    /** First byte position of a "bytes start-end/total" header, -1 if it cannot be parsed */
+    static long rangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Per file byte counts, reported as sums at most every PROGRESS_INTERVAL_MILLIS */
+    private static class Progress {
+        private final AtomicLongArray bytes;
+        private final AtomicLongArray totals;
+        private final Listener listener;
+        private long reportMillis = 0;
+
+        Progress(int count, Listener listener) {
+            this.bytes = new AtomicLongArray(count);
+            this.totals = new AtomicLongArray(count);
+            this.listener = listener;
+        }
+
+        /** Size of a file before its download starts, without reporting */
+        void expect(int index, long received, long total) {
+            bytes.set(index, received);
+            totals.set(index, total);
+        }
+
+        /** @param total expected size, 0 if unknown, the expected size is kept then */
+        void start(int index, long received, long total) {
+            bytes.set(index, received);
+            if (total > 0) totals.set(index, total);
+            report();
+        }
+
+        void update(int index, long received) {
+            bytes.set(index, received);
+            long now = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                if (now - reportMillis < PROGRESS_INTERVAL_MILLIS) return;
+                reportMillis = now;
+            }
+            report();
+        }
+
+        private void report() {
+            long sum = 0;
+            long totalSum = 0;
+            for (int i = 0; i < bytes.length(); i++) {
+                sum += bytes.get(i);
+                totalSum += totals.get(i);
+            }
+            listener.onProgress(sum, totalSum);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Binary patch which turns a known base model file into a new one.
+ * <p>
+ * Format, big-endian: magic "WBP1", MD5 of the base (16 bytes), MD5 of the result (16 bytes), size of the result
+ * (long), then operations until END: COPY (long base offset, int length) copies a range of the base, INSERT
+ * (int length, bytes) writes new bytes. The patch is applied while it is read, the result is hashed while it is
+ * written.
+ */
+public class ModelPatch {
+    public static final String EXTENSION = ".wbp";
+    private static final int MAGIC = 0x57425031;  // "WBP1"
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Apply a patch to base and write the result to target.
+     * @param baseMd5 MD5 of base, must match the base the patch was made for
+     * @param targetMd5 accepted hashes of the result
+     * @return MD5 of the result
+     * @throws IOException if reading or writing fails, the patch is malformed or a hash does not match.
+     * target is incomplete then and should be deleted.
+     */
+    public static String apply(File base, String baseMd5, InputStream patch, File target, String... targetMd5) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(patch, BUFFER_SIZE));
+        byte[] md5 = new byte[16];
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a model patch");
+            in.readFully(md5);
+            if (!ModelVerifier.toHex(md5).equals(baseMd5)) throw new IOException("Patch is for another base, MD5 " + ModelVerifier.toHex(md5));
+            in.readFully(md5);
+            String expected = ModelVerifier.toHex(md5);
+            if (!Arrays.asList(targetMd5).contains(expected)) throw new IOException("Patch creates an unexpected file, MD5 " + expected);
+            long targetSize = in.readLong();
+
+            MessageDigest digest = ModelVerifier.newMd5();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long written = 0;
+            try (FileChannel baseChannel = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+                 FileOutputStream out = new FileOutputStream(target)) {
+                long baseSize = baseChannel.size();
+                int op;
+                while ((op = in.readUnsignedByte()) != OP_END) {
+                    if (op == OP_COPY) {
+                        long offset = in.readLong();
+                        int length = in.readInt();
+                        if (offset < 0 || length < 0 || offset + length > baseSize) throw new IOException("COPY outside of base");
+                        while (length > 0) {
+                            int n = baseChannel.read(ByteBuffer.wrap(buffer, 0, Math.min(length, buffer.length)), offset);
+                            if (n <= 0) throw new EOFException("Base ended early");
+                            out.write(buffer, 0, n);
+                            digest.update(buffer, 0, n);
+                            offset += n;
+                            length -= n;
+                            written += n;
+                        }
+                    } else if (op == OP_INSERT) {
+                        int length = in.readInt();
+                        if (length < 0) throw new IOException("Negative INSERT length");
+                        while (length > 0) {
+                            int n = in.read(buffer, 0, Math.min(length, buffer.length));
+                            if (n < 0) throw new EOFException("Patch ended early");
+                            out.write(buffer, 0, n);
+                            digest.update(buffer, 0, n);
+                            length -= n;
+                            written += n;
+                        }
+                    } else {
+                        throw new IOException("Unknown patch operation " + op);
+                    }
+                    if (written > targetSize) throw new IOException("Patch result larger than " + targetSize + " bytes");
+                }
+                out.getFD().sync();
+            }
+            if (written != targetSize) throw new IOException("Patch result has " + written + " of " + targetSize + " bytes");
+            String result = ModelVerifier.toHex(digest.digest());
+            if (!result.equals(expected)) throw new IOException("Patch result MD5 mismatch " + result);
+            return result;
+        } catch (EOFException e) {
+            throw new IOException("Patch ended early", e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Integrity check of the downloaded model files.
+ * <p>
+ * A file is hashed once, streamed through the digest with a fixed buffer. Its size, modification time and MD5 are
+ * then stored in the preferences, so later starts only compare file metadata. The file is hashed again if the
+ * metadata changed, and in the background once the last full check is older than RECHECK_INTERVAL_MILLIS.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class ModelVerifier {
+    private static final String TAG = "ModelVerifier";
+    private static final String PREF_PREFIX = "verified_";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long RECHECK_INTERVAL_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * True if file exists and its MD5 is one of expectedMd5. A file with a wrong hash is deleted.
+     * A read error leaves the file in place and returns false.
+     */
+    public static boolean verify(Context context, File file, String... expectedMd5) {
+        if (!file.exists()) return false;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String key = PREF_PREFIX + file.getName();
+        Record record = Record.parse(prefs.getString(key, null));
+        if (record != null && record.matches(file) && Arrays.asList(expectedMd5).contains(record.md5)) {
+            if (System.currentTimeMillis() - record.checkedMillis > RECHECK_INTERVAL_MILLIS) {
+                new Thread(() -> check(prefs, key, file, expectedMd5), TAG).start();
+            }
+            return true;
+        }
+        return check(prefs, key, file, expectedMd5);
+    }
+
+    /** Hash file and update the stored record */
+    private static boolean check(SharedPreferences prefs, String key, File file, String... expectedMd5) {
+        long t0 = System.currentTimeMillis();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String md5;
+        try {
+            md5 = md5(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file.getName(), e);
+            return false;
+        }
+        Log.d(TAG, file.getName() + ": " + size + " bytes hashed in " + (System.currentTimeMillis() - t0) + " ms");
+        if (!Arrays.asList(expectedMd5).contains(md5)) {
+            Log.w(TAG, file.getName() + ": unexpected MD5 " + md5 + ", deleting");
+            prefs.edit().remove(key).apply();
+            file.delete();
+            return false;
+        }
+        prefs.edit().putString(key, new Record(size, lastModified, md5, System.currentTimeMillis()).toString()).apply();
+        return true;
+    }
+
+    /** MD5 recorded for file, null if there is no record or the file changed since */
+    public static String getVerifiedMd5(Context context, File file) {
+        Record record = Record.parse(PreferenceManager.getDefaultSharedPreferences(context).getString(PREF_PREFIX + file.getName(), null));
+        return record != null && record.matches(file) ? record.md5 : null;
+    }
+
+    /** Store the record for a file whose MD5 was computed elsewhere, e.g. while it was downloaded */
+    public static void markVerified(Context context, File file, String md5) {
+        Record record = new Record(file.length(), file.lastModified(), md5, System.currentTimeMillis());
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putString(PREF_PREFIX + file.getName(), record.toString()).apply();
+    }
+
+    /** Forget the stored record, the next {@link #verify} hashes the file again */
+    public static void invalidate(Context context, File file) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit().remove(PREF_PREFIX + file.getName()).apply();
+    }
+
+    /** Lower case hex MD5 of the file, read in BUFFER_SIZE chunks */
+    public static String md5(File file) throws IOException {
+        MessageDigest digest = newMd5();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) digest.update(buffer, 0, len);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // every Android release provides MD5
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /** Stored as "size:lastModified:md5:checkedMillis" */
+    private static class Record {
+        final long size;
+        final long lastModified;
+        final String md5;
+        final long checkedMillis;
+
+        Record(long size, long lastModified, String md5, long checkedMillis) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+            this.checkedMillis = checkedMillis;
+        }
+
+        static Record parse(String value) {
+            if (value == null) return null;
+            String[] parts = value.split(":");
+            if (parts.length != 4) return null;
+            try {
+                return new Record(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], Long.parseLong(parts[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        boolean matches(File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return size + ":" + lastModified + ":" + md5 + ":" + checkedMillis;
+        }
+    }
+}
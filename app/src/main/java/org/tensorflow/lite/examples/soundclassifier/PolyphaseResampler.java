@@ -0,0 +1,152 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter by the rational factor up/down, e.g. 160/147 from 44.1 kHz to 48 kHz.
+ * <p>
+ * The lowpass is a Kaiser windowed sinc at the upsampled rate, split into one filter of TAPS coefficients per phase.
+ * The tables and the input history are allocated once, {@link #process(short[], int, short[])} does not allocate and
+ * runs in float. The history is kept twice so each output is one contiguous dot product. Pure Java without Android
+ * classes, so it can be checked with synthetic signals on the JVM. Not thread-safe, use one instance per stream.
+ */
+public class PolyphaseResampler {
+    /** Coefficients per phase, i.e. input samples per output sample */
+    private static final int TAPS = 48;
+    /** Cutoff relative to the lower Nyquist frequency */
+    private static final double ROLLOFF = 0.85;
+    /** Kaiser window parameter, about 80 dB stopband attenuation */
+    private static final double BETA = 8.0;
+
+    private final int up;
+    private final int down;
+    /** TAPS coefficients per phase, oldest input first */
+    private final float[] coeffs;
+    /** Last TAPS input samples, stored at pos and pos + TAPS */
+    private final float[] history = new float[2 * TAPS];
+    private int pos = 0;
+    /** Position of the next output after the newest input, in 1/up input samples */
+    private int phase = 0;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) throw new IllegalArgumentException("Invalid sample rates " + inputRate + ", " + outputRate);
+        int gcd = gcd(inputRate, outputRate);
+        up = outputRate / gcd;
+        down = inputRate / gcd;
+
+        // Prototype lowpass at up * inputRate, the gain of up restores the level of the zero-stuffed input
+        int length = TAPS * up;
+        double cutoff = ROLLOFF * 0.5 / Math.max(up, down);
+        double center = (length - 1) / 2.0;
+        double i0Beta = besselI0(BETA);
+        double[] h = new double[length];
+        double sum = 0;
+        for (int j = 0; j < length; j++) {
+            double x = j - center;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double r = 2 * j / (double) (length - 1) - 1;
+            h[j] = sinc * besselI0(BETA * Math.sqrt(Math.max(0, 1 - r * r))) / i0Beta;
+            sum += h[j];
+        }
+        coeffs = new float[length];
+        for (int p = 0; p < up; p++) {
+            for (int k = 0; k < TAPS; k++) {
+                coeffs[p * TAPS + TAPS - 1 - k] = (float) (h[p + k * up] * up / sum);
+            }
+        }
+    }
+
+    /** Most output samples that n input samples can produce */
+    public int maxOutput(int n) {
+        return (int) (((long) n * up + down - 1) / down);
+    }
+
+    /** Most input samples whose output fits into capacity samples */
+    public int maxInput(int capacity) {
+        return (int) ((long) capacity * down / up);
+    }
+
+    /**
+     * Convert n input samples, keeping the state for the next call.
+     * @param out receives the output, needs maxOutput(n) samples
+     * @return number of output samples
+     */
+    public int process(short[] in, int n, short[] out) {
+        final float[] history = this.history;
+        final float[] coeffs = this.coeffs;
+        int pos = this.pos;
+        int phase = this.phase;
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            float x = in[i];
+            history[pos] = x;
+            history[pos + TAPS] = x;
+            pos = pos + 1 == TAPS ? 0 : pos + 1;
+            while (phase < up) {
+                int c = phase * TAPS;
+                float y = 0f;
+                for (int k = 0; k < TAPS; k++) y += coeffs[c + k] * history[pos + k];
+                int s = Math.round(y);
+                out[count++] = (short) (s > Short.MAX_VALUE ? Short.MAX_VALUE : Math.max(s, Short.MIN_VALUE));
+                phase += down;
+            }
+            phase -= up;
+        }
+        this.pos = pos;
+        this.phase = phase;
+        return count;
+    }
+
+    /** Clear the history, e.g. before a new recording */
+    public void reset() {
+        Arrays.fill(history, 0f);
+        pos = 0;
+        phase = 0;
+    }
+
+    /**
+     * CPU time to convert a sweep from 100 Hz to the lower Nyquist frequency, in 20 ms blocks like the capture thread.
+     * @return milliseconds per second of audio
+     */
+    public static float benchmark(int inputRate, int outputRate, int seconds) {
+        PolyphaseResampler resampler = new PolyphaseResampler(inputRate, outputRate);
+        int block = inputRate / 50;
+        short[] in = new short[block];
+        short[] out = new short[resampler.maxOutput(block)];
+        double maxFrequency = Math.min(inputRate, outputRate) / 2.0;
+        int total = inputRate * seconds;
+        double phase = 0;
+        long nanos = 0;
+        for (int i = 0; i < total; i += block) {
+            for (int j = 0; j < block; j++) {
+                double frequency = 100 + (maxFrequency - 100) * (i + j) / total;
+                phase += 2 * Math.PI * frequency / inputRate;
+                in[j] = (short) (16384 * Math.sin(phase));
+            }
+            long t0 = System.nanoTime();
+            resampler.process(in, block, out);
+            nanos += System.nanoTime() - t0;
+        }
+        return nanos / 1e6f / seconds;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /** Modified Bessel function of the first kind, order 0 */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; term > 1e-12 * sum; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+}
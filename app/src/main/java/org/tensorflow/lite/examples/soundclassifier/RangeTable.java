@@ -0,0 +1,270 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Meta model weights of a region, precomputed on a grid for all model weeks, so the meta model does not need to be
+ * loaded while the location is inside the region.
+ * <p>
+ * range.bin, little-endian: header (magic "RNG1", version, classes, weeks, latitude and longitude of the first cell
+ * and grid step in 0.01 degrees, rows, columns, vector count, region species count, MD5 of the meta model), then the
+ * class index of each region species, one vector index per cell and week, the byte offsets of the vectors and the
+ * distinct vectors. Only the few hundred species with a weight somewhere in the region get a code, so a vector is a
+ * 2 bit mask over the region species, numbered in order of appearance, with trailing zero bytes cut off. Neighbouring
+ * cells and weeks mostly share their vectors. Longitudes wrap at 180 degrees. The file is memory-mapped.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class RangeTable {
+    private static final String TAG = "RangeTable";
+    public static final String FILE = "range.bin";
+    private static final int MAGIC = 0x31474E52;  // "RNG1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    // grid of the generated region around a location, in 0.01 degrees
+    private static final int REGION_RADIUS = 100;
+    private static final int GRID_STEP = 5;
+
+    private final MappedByteBuffer table;
+    private final int numClasses;
+    private final int weeks;
+    private final int latMin;
+    private final int lonMin;
+    private final int step;
+    private final int rows;
+    private final int cols;
+    private final int indexOffset;
+    private final int offsetsOffset;
+    private final int vectorsOffset;
+
+    private RangeTable(MappedByteBuffer table) {
+        this.table = table;
+        numClasses = table.getInt(8);
+        weeks = table.getInt(12);
+        latMin = table.getInt(16);
+        lonMin = table.getInt(20);
+        step = table.getInt(24);
+        rows = table.getInt(28);
+        cols = table.getInt(32);
+        int vectorCount = table.getInt(36);
+        int regionSpecies = table.getInt(40);
+        indexOffset = HEADER_SIZE + 4 * regionSpecies;
+        offsetsOffset = indexOffset + 4 * rows * cols * weeks;
+        vectorsOffset = offsetsOffset + 4 * (vectorCount + 1);
+    }
+
+    private static File file(Context context) {
+        return new File(context.getDir("filesdir", Context.MODE_PRIVATE), FILE);
+    }
+
+    public static boolean exists(Context context) {
+        return file(context).exists();
+    }
+
+    /** Map the range table, null if there is none or it was made from another meta model */
+    public static RangeTable open(Context context, String metaModelMd5) {
+        File file = file(context);
+        if (!file.exists()) return null;
+        MappedByteBuffer table;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map " + FILE, e);
+            return null;
+        }
+        table.order(ByteOrder.LITTLE_ENDIAN);
+        if (table.capacity() < HEADER_SIZE || table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+            Log.w(TAG, "Unsupported " + FILE);
+            return null;
+        }
+        byte[] md5 = new byte[16];
+        for (int i = 0; i < md5.length; i++) md5[i] = table.get(44 + i);
+        if (!ModelVerifier.toHex(md5).equals(metaModelMd5)) {
+            Log.w(TAG, FILE + " was made from another meta model");
+            return null;
+        }
+        RangeTable rangeTable = new RangeTable(table);
+        Log.i(TAG, "Range table " + rangeTable.rows + " x " + rangeTable.cols + " cells, " + table.capacity() / 1024 + " kB");
+        return rangeTable;
+    }
+
+    public int getNumClasses() {
+        return numClasses;
+    }
+
+    private int row(float lat) {
+        return Math.round((lat * 100f - latMin) / step);
+    }
+
+    private int col(float lon) {
+        float d = (lon * 100f - lonMin + 18000f) % 36000f;
+        return Math.round(((d < 0 ? d + 36000f : d) - 18000f) / step);
+    }
+
+    /** Longitude in 0.01 degrees, -18000 to 17999 */
+    private static int wrapLongitude(int lon) {
+        return Math.floorMod(lon + 18000, 36000) - 18000;
+    }
+
+    public boolean contains(float lat, float lon) {
+        int row = row(lat);
+        int col = col(lon);
+        return row >= 0 && row < rows && col >= 0 && col < cols;
+    }
+
+    /** Weights of all weeks of the nearest grid cell, a table for {@link MetaCache#unpack} */
+    public byte[] weekTable(float lat, float lon) {
+        int cell = row(lat) * cols + col(lon);
+        int weekSize = MetaCache.weekSize(numClasses);
+        byte[] weekTable = new byte[weeks * weekSize];
+        for (int week = 0; week < weeks; week++) {
+            int vector = table.getInt(indexOffset + 4 * (cell * weeks + week));
+            int start = table.getInt(offsetsOffset + 4 * vector);
+            int end = table.getInt(offsetsOffset + 4 * (vector + 1));
+            for (int b = start; b < end; b++) {
+                int bits = table.get(vectorsOffset + b) & 0xFF;
+                for (int k = 0; bits != 0; k++, bits >>= 2) {
+                    int code = bits & 3;
+                    if (code == 0) continue;
+                    int species = table.getInt(HEADER_SIZE + 4 * ((b - start) * 4 + k));
+                    weekTable[week * weekSize + (species >> 2)] |= code << ((species & 3) * 2);
+                }
+            }
+        }
+        return weekTable;
+    }
+
+    /**
+     * Evaluate the meta model on a grid around a location and write range.bin. Slow, call off the main thread.
+     * @return number of distinct weight vectors
+     */
+    public static int build(Context context, float lat, float lon, SoundClassifier.Options options) throws IOException {
+        long t0 = SystemClock.elapsedRealtime();
+        Interpreter interpreter = new Interpreter(SoundClassifier.mapModelFile(context, options.getMetaModelPath()), new Interpreter.Options());
+        try {
+            int inputLength = interpreter.getInputTensor(0).shape()[1];
+            int numClasses = interpreter.getOutputTensor(0).shape()[1];
+            int weeks = MetaCache.WEEKS;
+            int batch = weeks;
+            try {
+                interpreter.resizeInput(0, new int[]{weeks, inputLength});
+                interpreter.allocateTensors();
+            } catch (RuntimeException e) {
+                interpreter.resizeInput(0, new int[]{1, inputLength});
+                interpreter.allocateTensors();
+                batch = 1;
+            }
+            int latMin = Math.max(-9000, Math.round(lat * 100f) - REGION_RADIUS);
+            int lonMin = Math.round(lon * 100f) - REGION_RADIUS;
+            int rows = (Math.min(9000, latMin + 2 * REGION_RADIUS) - latMin) / GRID_STEP + 1;
+            int cols = 2 * REGION_RADIUS / GRID_STEP + 1;
+
+            FloatBuffer input = FloatBuffer.allocate(batch * inputLength);
+            FloatBuffer output = FloatBuffer.allocate(batch * numClasses);
+            // Region species in order of appearance, the mask of a vector is over these
+            int[] regionIndex = new int[numClasses];
+            Arrays.fill(regionIndex, -1);
+            int[] regionSpecies = new int[numClasses];
+            int regionCount = 0;
+            byte[] mask = new byte[MetaCache.weekSize(numClasses)];
+            int[] index = new int[rows * cols * weeks];
+            Map<ByteBuffer, Integer> ids = new HashMap<>();
+            List<byte[]> vectors = new ArrayList<>();
+            int vectorBytes = 0;
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    float cellLat = (latMin + row * GRID_STEP) / 100f;
+                    float cellLon = wrapLongitude(lonMin + col * GRID_STEP) / 100f;
+                    for (int firstWeek = 1; firstWeek <= weeks; firstWeek += batch) {
+                        for (int b = 0; b < batch; b++) {
+                            input.put(b * inputLength, cellLat);
+                            input.put(b * inputLength + 1, cellLon);
+                            input.put(b * inputLength + 2, SoundClassifier.metaWeekInput(firstWeek + b));
+                        }
+                        input.rewind();
+                        output.rewind();
+                        interpreter.run(input, output);
+                        for (int b = 0; b < batch; b++) {
+                            // Quantize to the 2 bit codes first, then deduplicate the compact mask
+                            Arrays.fill(mask, (byte) 0);
+                            int length = 0;
+                            for (int i = 0; i < numClasses; i++) {
+                                int code = MetaCache.code(SoundClassifier.metaWeight(output.get(b * numClasses + i), options));
+                                if (code == 0) continue;
+                                if (regionIndex[i] < 0) {
+                                    regionIndex[i] = regionCount;
+                                    regionSpecies[regionCount++] = i;
+                                }
+                                int k = regionIndex[i];
+                                mask[k >> 2] |= code << ((k & 3) * 2);
+                                length = Math.max(length, (k >> 2) + 1);
+                            }
+                            byte[] vector = Arrays.copyOf(mask, length);
+                            Integer id = ids.get(ByteBuffer.wrap(vector));
+                            if (id == null) {
+                                id = vectors.size();
+                                vectors.add(vector);
+                                ids.put(ByteBuffer.wrap(vector), id);
+                                vectorBytes += vector.length;
+                            }
+                            index[(row * cols + col) * weeks + firstWeek + b - 1] = id;
+                        }
+                    }
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * (regionCount + index.length + vectors.size() + 1))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numClasses).putInt(weeks)
+                    .putInt(latMin).putInt(lonMin).putInt(GRID_STEP).putInt(rows).putInt(cols)
+                    .putInt(vectors.size()).putInt(regionCount);
+            byte[] md5 = new byte[16];
+            for (int i = 0; i < md5.length; i++) md5[i] = (byte) Integer.parseInt(Downloader.metaModelMD5.substring(2 * i, 2 * i + 2), 16);
+            header.put(md5);
+            header.position(HEADER_SIZE);
+            for (int i = 0; i < regionCount; i++) header.putInt(regionSpecies[i]);
+            for (int id : index) header.putInt(id);
+            int offset = 0;
+            for (byte[] vector : vectors) {
+                header.putInt(offset);
+                offset += vector.length;
+            }
+            header.putInt(offset);
+            File file = file(context);
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(header.array());
+                for (byte[] vector : vectors) out.write(vector);
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Failed to rename " + tmp.getName());
+            }
+            Log.i(TAG, rows + " x " + cols + " cells, " + regionCount + " species, " + vectors.size() + " distinct vectors of "
+                    + vectorBytes / 1024 + " kB, " + file.length() / 1024
+                    + " kB, built in " + (SystemClock.elapsedRealtime() - t0) + " ms");
+            return vectors.size();
+        } finally {
+            interpreter.close();
+        }
+    }
+}
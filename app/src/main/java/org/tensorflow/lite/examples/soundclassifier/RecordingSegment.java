@@ -0,0 +1,42 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+public class RecordingSegment {
+    private long id;
+    private long startMillis;
+    private String path;
+    private int sampleRate;
+    private long samples;
+
+    public RecordingSegment(long id, long startMillis, String path, int sampleRate, long samples) {
+        this.id = id;
+        this.startMillis = startMillis;
+        this.path = path;
+        this.sampleRate = sampleRate;
+        this.samples = samples;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /** Position of the given wall clock time within this segment in milliseconds */
+    public long getOffsetMillis(long timeInMillis) {
+        return timeInMillis - startMillis;
+    }
+}
@@ -35,7 +35,9 @@ public class RecyclerOverviewListAdapter extends RecyclerView.Adapter<RecyclerOv
     @Override
     public void onBindViewHolder(ObservationViewHolder holder, int position) {
 
-        holder.name.setText(birdObservations.get(position).getName());
+        String config = birdObservations.get(position).getConfig();
+        if (config != null) holder.name.setText(birdObservations.get(position).getName() + " (" + config + ")");
+        else holder.name.setText(birdObservations.get(position).getName());
         holder.probability.setText((int) Math.round(birdObservations.get(position).getProbability()*100.0)+ " %");
 
         if (birdObservations.get(position).getProbability() < 0.3 )  holder.holder.setBackgroundResource(R.drawable.oval_holo_red_dark_thin_dotted);
@@ -75,6 +77,10 @@ public class RecyclerOverviewListAdapter extends RecyclerView.Adapter<RecyclerOv
         return birdObservations.size();
     }
 
+    public int getID(int position) {
+        return birdObservations.get(position).getId();
+    }
+
     public int getSpeciesID(int position) {
         return birdObservations.get(position).getSpeciesId();
     }
@@ -0,0 +1,187 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.lingala.zip4j.ZipFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Second audio model for ensemble classification, e.g. trained for local species and call types, and the map of its
+ * classes onto the species of the main model.
+ * <p>
+ * The model is installed from a ZIP file with a .tflite file and a .txt file with one label per output class: an
+ * eBird code, a scientific name or a BirdNET label. Classes without a matching species are ignored, several classes
+ * of one species (call types) count with their highest score.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class RegionalModel {
+    private static final String TAG = "RegionalModel";
+    public static final String DIR = "regional";
+    public static final String MODEL_FILE = DIR + "/model.tflite";
+    private static final String LABELS_FILE = DIR + "/labels.txt";
+    public static final String FUSION_MAX = "max";
+    public static final String FUSION_WEIGHTED = "weighted";
+    // probabilities are kept off 0 and 1 when converted back to logits
+    private static final float EPSILON = 1e-6f;
+
+    /** Species of each class of the model, -1 if it has none */
+    private final int[] classMap;
+    /** Distinct species of classMap */
+    private final int[] targets;
+    /** Highest logit of each species, indexed like the main model */
+    private final float[] merged;
+
+    private RegionalModel(int[] classMap, int numClasses) {
+        this.classMap = classMap;
+        boolean[] mapped = new boolean[numClasses];
+        for (int id : classMap) if (id >= 0) mapped[id] = true;
+        int count = 0;
+        for (boolean m : mapped) if (m) count++;
+        targets = new int[count];
+        int k = 0;
+        for (int i = 0; i < numClasses; i++) if (mapped[i]) targets[k++] = i;
+        merged = new float[numClasses];
+    }
+
+    private static File dir(Context context) {
+        return new File(context.getDir("filesdir", Context.MODE_PRIVATE), DIR);
+    }
+
+    public static boolean exists(Context context) {
+        File filesDir = context.getDir("filesdir", Context.MODE_PRIVATE);
+        return new File(filesDir, MODEL_FILE).exists() && new File(filesDir, LABELS_FILE).exists();
+    }
+
+    /** Read the labels of the installed model and map them onto the species */
+    public static RegionalModel load(Context context, SpeciesRegistry species) throws IOException {
+        List<String> labels = readLabels(new File(context.getDir("filesdir", Context.MODE_PRIVATE), LABELS_FILE));
+        int[] classMap = new int[labels.size()];
+        for (int j = 0; j < classMap.length; j++) classMap[j] = species.findSpecies(labels.get(j));
+        RegionalModel regionalModel = new RegionalModel(classMap, species.size());
+        Log.i(TAG, classMap.length + " classes, " + regionalModel.targets.length + " species mapped");
+        return regionalModel;
+    }
+
+    /** Number of output classes the model must have */
+    public int getNumClasses() {
+        return classMap.length;
+    }
+
+    /** Number of main model species the model scores */
+    public int getNumSpecies() {
+        return targets.length;
+    }
+
+    /**
+     * Fuse the output of this model into the logits of the main model. FUSION_MAX takes the higher logit,
+     * FUSION_WEIGHTED averages the probabilities with the given weight of this model.
+     */
+    public void fuse(float[] logits, float[] regionalLogits, String rule, float weight) {
+        for (int i : targets) merged[i] = Float.NEGATIVE_INFINITY;
+        for (int j = 0; j < classMap.length; j++) {
+            int i = classMap[j];
+            if (i >= 0 && regionalLogits[j] > merged[i]) merged[i] = regionalLogits[j];
+        }
+        if (FUSION_WEIGHTED.equals(rule)) {
+            for (int i : targets) {
+                float p = (1 - weight) * sigmoid(logits[i]) + weight * sigmoid(merged[i]);
+                p = Math.min(1 - EPSILON, Math.max(EPSILON, p));
+                logits[i] = (float) Math.log(p / (1 - p));
+            }
+        } else {
+            for (int i : targets) logits[i] = Math.max(logits[i], merged[i]);
+        }
+    }
+
+    private static float sigmoid(float logit) {
+        return (float) (1 / (1 + Math.exp(-logit)));
+    }
+
+    /**
+     * Install a model from a ZIP file with a .tflite and a labels .txt file, replacing the installed one.
+     * @return number of classes mapped to a species
+     * @throws IOException if the file cannot be read or has no model, labels or known species
+     */
+    public static int install(Context context, InputStream zip, SpeciesRegistry species) throws IOException {
+        File tmpZip = new File(context.getCacheDir(), "regional.zip");
+        File tmpDir = new File(context.getCacheDir(), DIR);
+        try {
+            try (OutputStream out = new FileOutputStream(tmpZip)) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = zip.read(buffer)) > 0) out.write(buffer, 0, n);
+            }
+            deleteDir(tmpDir);
+            new ZipFile(tmpZip).extractAll(tmpDir.getPath());
+            File model = find(tmpDir, ".tflite");
+            File labels = find(tmpDir, ".txt");
+            if (model == null || labels == null) throw new IOException("ZIP file needs a .tflite and a labels .txt file");
+            int mapped = 0;
+            for (String label : readLabels(labels)) if (species.findSpecies(label) >= 0) mapped++;
+            if (mapped == 0) throw new IOException("No label matches a species");
+
+            File dir = dir(context);
+            deleteDir(dir);
+            dir.mkdirs();
+            if (!model.renameTo(new File(context.getDir("filesdir", Context.MODE_PRIVATE), MODEL_FILE))
+                    || !labels.renameTo(new File(context.getDir("filesdir", Context.MODE_PRIVATE), LABELS_FILE))) {
+                deleteDir(dir);
+                throw new IOException("Failed to install the model");
+            }
+            Log.i(TAG, "Installed " + model.getName() + ", " + mapped + " classes mapped");
+            return mapped;
+        } finally {
+            tmpZip.delete();
+            deleteDir(tmpDir);
+        }
+    }
+
+    private static List<String> readLabels(File file) throws IOException {
+        List<String> labels = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) labels.add(line.trim());
+        }
+        while (!labels.isEmpty() && labels.get(labels.size() - 1).isEmpty()) labels.remove(labels.size() - 1);
+        return labels;
+    }
+
+    /** First file with the given extension in dir or its subdirectories */
+    private static File find(File dir, String extension) {
+        File[] files = dir.listFiles();
+        if (files == null) return null;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                File found = find(file, extension);
+                if (found != null) return found;
+            } else if (file.getName().toLowerCase(Locale.ROOT).endsWith(extension)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) {
+            if (file.isDirectory()) deleteDir(file);
+            else file.delete();
+        }
+        dir.delete();
+    }
+}
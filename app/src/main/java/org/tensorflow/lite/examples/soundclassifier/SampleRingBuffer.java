@@ -0,0 +1,78 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+/**
+ * Lock-free single-producer / single-consumer ring buffer for 16 bit PCM samples.
+ * The producer (capture thread) never blocks: samples that do not fit are dropped and counted, together with the
+ * stream position of the latest drop so the consumer can account for the gap.
+ */
+public class SampleRingBuffer {
+    private final short[] buffer;
+    private volatile long writeCount = 0;  // total samples written by the producer
+    private volatile long readCount = 0;   // total samples consumed by the consumer
+    private volatile long droppedCount = 0;
+    private volatile long dropPosition = 0;  // writeCount at the latest drop
+
+    public SampleRingBuffer(int capacity) {
+        buffer = new short[capacity];
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /** Number of samples ready to be read */
+    public int available() {
+        return (int) (writeCount - readCount);
+    }
+
+    /** Number of samples dropped because the consumer did not keep up */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** Samples written before the latest drop, read it after getDroppedCount() */
+    public long getDropPosition() {
+        return dropPosition;
+    }
+
+    /** Total samples consumed */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    /** Producer side. Copies up to length samples, returns the number of samples actually written. */
+    public int write(short[] src, int offset, int length) {
+        long w = writeCount;
+        int free = buffer.length - (int) (w - readCount);
+        int n = Math.min(length, free);
+        if (n < length) {
+            dropPosition = w + n;  // published by the droppedCount write
+            droppedCount += length - n;
+        }
+        if (n <= 0) return 0;
+        int start = (int) (w % buffer.length);
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, first);
+        if (n > first) System.arraycopy(src, offset + first, buffer, 0, n - first);
+        writeCount = w + n;  // publish after the copy
+        return n;
+    }
+
+    /** Consumer side. Copies up to length samples, returns the number of samples actually read. */
+    public int read(short[] dst, int offset, int length) {
+        long r = readCount;
+        int n = Math.min(length, (int) (writeCount - r));
+        if (n <= 0) return 0;
+        int start = (int) (r % buffer.length);
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, first);
+        if (n > first) System.arraycopy(buffer, 0, dst, offset + first, n - first);
+        readCount = r + n;  // release the space after the copy
+        return n;
+    }
+
+    /** Consumer side. Discards everything that is currently buffered. */
+    public void clear() {
+        readCount = writeCount;
+    }
+}
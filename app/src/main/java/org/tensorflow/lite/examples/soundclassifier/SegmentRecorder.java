@@ -0,0 +1,150 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import static android.os.Environment.DIRECTORY_MUSIC;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Continuous recording of the raw capture stream into fixed-length, rotating .wav segments.
+ * <p>
+ * Samples are written on the background thread of {@link AudioConsumer} into a pre-sized segment file through a
+ * {@link FileChannel}. Each segment is registered in {@link BirdDBHelper} so detections can be located in the
+ * recording by their timestamp. Segment start times are derived from the sample count, a gap of dropped samples
+ * closes the current segment and moves the start of the next one forward.
+ */
+public class SegmentRecorder extends AudioConsumer {
+    public static final String TAG = "SegmentRecorder";
+    private static final int WAV_HEADER_SIZE = 44;
+    private static final long DRAIN_INTERVAL_NANOS = 250_000_000L;
+
+    private final BirdDBHelper database;
+    private final int sampleRate;
+    private final long segmentSamples;
+    private final ByteBuffer writeBuffer;
+
+    private long startMillis;
+    private long totalSamples;  // samples captured since start(), including dropped ones, used to derive segment start times
+
+    private RandomAccessFile segmentFile;
+    private FileChannel segmentChannel;
+    private long segmentId = -1;
+    private long segmentWritten;  // samples written to the current segment
+
+    public SegmentRecorder(BirdDBHelper database, int sampleRate, int segmentSeconds) {
+        super(TAG, sampleRate * 10, sampleRate / 2, DRAIN_INTERVAL_NANOS);  // 10 s of slack for slow storage
+        this.database = database;
+        this.sampleRate = sampleRate;
+        this.segmentSamples = (long) sampleRate * segmentSeconds;
+        this.writeBuffer = ByteBuffer.allocateDirect(sampleRate).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static File getRecordingDirectory() {
+        return new File(Environment.getExternalStoragePublicDirectory(DIRECTORY_MUSIC).getPath() + "/whoBIRD/recordings");
+    }
+
+    /** Start a new recording, the first segment begins at startMillis. */
+    public synchronized boolean start(long startMillis) {
+        this.startMillis = startMillis;
+        return start();
+    }
+
+    @Override
+    protected void onStart() throws IOException {
+        if (!WavUtils.isExternalStorageWritable()) throw new IOException("External Storage not writeable");
+        File path = getRecordingDirectory();
+        if (!path.exists() && !path.mkdirs()) throw new IOException("Failed to make directory: " + path);
+        totalSamples = 0;
+    }
+
+    @Override
+    protected void process(short[] samples, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            if (segmentChannel == null) openSegment();
+            int chunk = (int) Math.min(count - offset, segmentSamples - segmentWritten);
+            writeBuffer.clear();
+            writeBuffer.asShortBuffer().put(samples, offset, chunk);
+            writeBuffer.limit(chunk * 2);
+            long position = WAV_HEADER_SIZE + segmentWritten * 2;
+            while (writeBuffer.hasRemaining()) {
+                position += segmentChannel.write(writeBuffer, position);
+            }
+            offset += chunk;
+            segmentWritten += chunk;
+            totalSamples += chunk;
+            if (segmentWritten == segmentSamples) closeSegment();
+        }
+    }
+
+    @Override
+    protected void onDropped(long count) {
+        Log.w(TAG, "Gap of " + count + " samples, starting a new segment");
+        closeSegment();
+        totalSamples += count;
+    }
+
+    @Override
+    protected void onStop() {
+        closeSegment();
+    }
+
+    private void openSegment() throws IOException {
+        long segmentStart = startMillis + totalSamples * 1000 / sampleRate;
+        File file = new File(getRecordingDirectory(), segmentStart + ".wav");
+        segmentFile = new RandomAccessFile(file, "rw");
+        // Pre-size the file for a full segment so the file system does not have to grow it on every write
+        segmentFile.setLength(WAV_HEADER_SIZE + segmentSamples * 2);
+        segmentChannel = segmentFile.getChannel();
+        writeHeader(segmentSamples);
+        segmentWritten = 0;
+        segmentId = database.addSegment(segmentStart, file.getAbsolutePath(), sampleRate);
+        Log.d(TAG, "Opened segment " + file.getAbsolutePath());
+    }
+
+    private void closeSegment() {
+        if (segmentChannel == null) return;
+        try {
+            if (segmentWritten < segmentSamples) {
+                // Recording stopped early, cut off the unused pre-sized part
+                segmentFile.setLength(WAV_HEADER_SIZE + segmentWritten * 2);
+                writeHeader(segmentWritten);
+            }
+            segmentChannel.force(false);
+            segmentFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing segment", e);
+        }
+        database.finishSegment(segmentId, segmentWritten);
+        segmentChannel = null;
+        segmentFile = null;
+        segmentId = -1;
+    }
+
+    private void writeHeader(long numSamples) throws IOException {
+        int dataSize = (int) (numSamples * 2);
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(36 + dataSize);
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '}).putInt(16);
+        header.putShort((short) 1);           // PCM
+        header.putShort((short) 1);           // mono
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * 2);        // byte rate
+        header.putShort((short) 2);           // block align
+        header.putShort((short) 16);          // bits per sample
+        header.put(new byte[]{'d', 'a', 't', 'a'}).putInt(dataSize);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += segmentChannel.write(header, position);
+        }
+    }
+}
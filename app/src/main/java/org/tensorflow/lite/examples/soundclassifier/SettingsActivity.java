@@ -6,10 +6,17 @@ import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.view.MenuItem;
+import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceManager;
@@ -18,6 +25,9 @@ import androidx.preference.PreferenceScreen;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 import com.google.android.material.navigation.NavigationBarView;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 public class SettingsActivity extends AppCompatActivity {
 Context mContext;
 
@@ -59,26 +69,247 @@ Context mContext;
 
 
     public static class SettingsFragment extends PreferenceFragmentCompat {
+        private final ActivityResultLauncher<Intent> thresholdsLauncher = registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+            if (result.getResultCode() == RESULT_OK && result.getData() != null && result.getData().getData() != null) {
+                importThresholds(result.getData().getData());
+            }
+        });
+        private final ActivityResultLauncher<Intent> regionalModelLauncher = registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+            if (result.getResultCode() == RESULT_OK && result.getData() != null && result.getData().getData() != null) {
+                installRegionalModel(result.getData().getData());
+            }
+        });
+
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             setPreferencesFromResource(R.xml.root_preferences, rootKey);
             PreferenceScreen preferenceScreen = getPreferenceScreen();
             Preference writeWav = getPreferenceManager().findPreference("write_wav");
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) preferenceScreen.removePreference(writeWav);
+            Preference continuousRecording = getPreferenceManager().findPreference("continuous_recording");
+            Preference segmentLength = getPreferenceManager().findPreference("segment_length");
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+                preferenceScreen.removePreference(segmentLength);
+                preferenceScreen.removePreference(continuousRecording);
+            }
             Preference reset = getPreferenceManager().findPreference("reset");
+            Preference rescore = getPreferenceManager().findPreference("rescore");
+
+            Preference benchmark = getPreferenceManager().findPreference("model_benchmark");
+            if (benchmark != null) {
+                String result = ModelBenchmark.describe(requireContext());
+                if (result != null) benchmark.setSummary(result);
+                benchmark.setOnPreferenceClickListener(preference -> {
+                    Context context = requireContext().getApplicationContext();
+                    Handler handler = new Handler(Looper.getMainLooper());
+                    preference.setEnabled(false);
+                    preference.setSummary(R.string.benchmarking);
+                    new Thread(() -> {
+                        ModelBenchmark.Result best = Downloader.benchmarkModels(context);
+                        if (best != null) SoundClassifier.reloadIfRunning();
+                        handler.post(() -> {
+                            preference.setEnabled(true);
+                            String summary = ModelBenchmark.describe(context);
+                            if (summary != null) preference.setSummary(summary);
+                            else preference.setSummary(R.string.summary_model_benchmark);
+                            if (best != null) Toast.makeText(context, R.string.model_benchmark_done, Toast.LENGTH_SHORT).show();
+                        });
+                    }, "ModelBenchmark").start();
+                    return true;
+                });
+            }
+
+            ListPreference variant = getPreferenceManager().findPreference("model_variant");
+            if (variant != null) {
+                String installed = Downloader.installedVariant(requireContext());
+                if (installed != null) variant.setValue(installed);
+                variant.setOnPreferenceChangeListener((preference, newValue) -> {
+                    Context context = requireContext().getApplicationContext();
+                    Handler handler = new Handler(Looper.getMainLooper());
+                    if (newValue.equals(Downloader.installedVariant(context))) return true;
+                    boolean started = Downloader.installVariant(context, (String) newValue, new ModelDownloadManager.Listener() {
+                        @Override
+                        public void onProgress(long bytes, long totalBytes) {
+                            if (totalBytes > 0) handler.post(() -> preference.setSummary(context.getString(R.string.downloading_variant, (int) (100 * bytes / totalBytes))));
+                        }
+
+                        @Override
+                        public void onFinished(boolean success) {
+                            handler.post(() -> {
+                                preference.setEnabled(true);
+                                String current = Downloader.installedVariant(context);
+                                if (current != null) variant.setValue(current);
+                                preference.setSummary("%s");
+                                if (!success) Toast.makeText(context, R.string.error_download, Toast.LENGTH_SHORT).show();
+                            });
+                        }
+                    });
+                    if (started) preference.setEnabled(false);
+                    return started;
+                });
+            }
+
+            Preference rangeTable = getPreferenceManager().findPreference("range_table");
+            if (rangeTable != null) rangeTable.setOnPreferenceClickListener(preference -> {
+                Context context = requireContext().getApplicationContext();
+                Handler handler = new Handler(Looper.getMainLooper());
+                float lat = SoundClassifier.Companion.getLat();
+                float lon = SoundClassifier.Companion.getLon();
+                if (lat == 0f && lon == 0f) {
+                    Toast.makeText(context, R.string.error_no_location, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                preference.setEnabled(false);
+                preference.setSummary(R.string.building_range_table);
+                new Thread(() -> {
+                    try {
+                        int vectors = RangeTable.build(context, lat, lon, new SoundClassifier.Options());
+                        handler.post(() -> {
+                            SoundClassifier.rangeTableChanged();
+                            Toast.makeText(context, context.getString(R.string.range_table_done, vectors), Toast.LENGTH_SHORT).show();
+                        });
+                    } catch (IOException e) {
+                        Log.e("SettingsActivity", "Building range table failed", e);
+                        handler.post(() -> Toast.makeText(context, e.toString(), Toast.LENGTH_LONG).show());
+                    }
+                    handler.post(() -> {
+                        preference.setEnabled(true);
+                        preference.setSummary(R.string.summary_range_table);
+                    });
+                }, "RangeTable").start();
+                return true;
+            });
+
+            Preference ensemble = getPreferenceManager().findPreference("ensemble");
+            if (ensemble != null) ensemble.setOnPreferenceChangeListener((preference, newValue) -> {
+                // reload once the new value is stored
+                new Handler(Looper.getMainLooper()).post(SoundClassifier::ensembleChanged);
+                return true;
+            });
+
+            Preference regionalModel = getPreferenceManager().findPreference("regional_model");
+            if (regionalModel != null) {
+                if (RegionalModel.exists(requireContext())) regionalModel.setSummary(R.string.regional_model_installed);
+                regionalModel.setOnPreferenceClickListener(preference -> {
+                    Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("application/zip");
+                    regionalModelLauncher.launch(intent);
+                    return true;
+                });
+            }
+
+            Preference thresholds = getPreferenceManager().findPreference("species_thresholds");
+            if (thresholds != null) {
+                updateThresholdsSummary(thresholds);
+                thresholds.setOnPreferenceClickListener(preference -> {
+                    Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("*/*");
+                    intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{"text/csv", "text/comma-separated-values", "text/plain"});
+                    thresholdsLauncher.launch(intent);
+                    return true;
+                });
+            }
+
+            if (rescore != null) rescore.setOnPreferenceClickListener(preference -> {
+                Context context = requireContext().getApplicationContext();
+                Handler handler = new Handler(Looper.getMainLooper());
+                preference.setEnabled(false);
+                new Thread(() -> {
+                    try {
+                        int count = new HistoryRescorer(context, new SoundClassifier.Options()).run();
+                        handler.post(() -> Toast.makeText(context, context.getString(R.string.rescore_done, count), Toast.LENGTH_SHORT).show());
+                    } catch (IOException e) {
+                        Log.e("SettingsActivity", "Re-scoring failed", e);
+                        handler.post(() -> Toast.makeText(context, e.toString(), Toast.LENGTH_LONG).show());
+                    } finally {
+                        handler.post(() -> preference.setEnabled(true));
+                    }
+                }, "HistoryRescorer").start();
+                return true;
+            });
 
             if (reset != null) reset.setOnPreferenceClickListener(preference -> {
                 SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(requireContext());
 
                 sharedPreferences.edit().remove("audio_source").apply();
+                sharedPreferences.edit().remove("capture_rate").apply();
                 sharedPreferences.edit().remove("high_pass").apply();
                 sharedPreferences.edit().remove("model_threshold").apply();
+                sharedPreferences.edit().remove("smoothing").apply();
+                sharedPreferences.edit().remove("ensemble").apply();
+                sharedPreferences.edit().remove("ensemble_fusion").apply();
+                sharedPreferences.edit().remove("regional_weight").apply();
+                sharedPreferences.edit().remove("ab_mode").apply();
+                sharedPreferences.edit().remove("ab_high_pass").apply();
+                sharedPreferences.edit().remove("ab_model_threshold").apply();
+                sharedPreferences.edit().remove("ab_ignore_meta").apply();
                 sharedPreferences.edit().remove("play_sound").apply();
                 sharedPreferences.edit().remove("write_wav").apply();
+                sharedPreferences.edit().remove("show_spectrogram").apply();
+                sharedPreferences.edit().remove("store_embeddings").apply();
+                sharedPreferences.edit().remove("continuous_recording").apply();
+                sharedPreferences.edit().remove("segment_length").apply();
+                sharedPreferences.edit().remove("ltsa").apply();
+                sharedPreferences.edit().remove("ltsa_interval").apply();
+                SpeciesThresholds.getInstance(requireContext()).clear();
+                SoundClassifier.ensembleChanged();
 
                 onCreatePreferences(savedInstanceState,rootKey);
                 return false;
             });
         }
+
+        private void installRegionalModel(Uri uri) {
+            Context context = requireContext().getApplicationContext();
+            Handler handler = new Handler(Looper.getMainLooper());
+            Preference preference = getPreferenceManager().findPreference("regional_model");
+            if (preference != null) {
+                preference.setEnabled(false);
+                preference.setSummary(R.string.installing_regional_model);
+            }
+            new Thread(() -> {
+                String message;
+                try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+                    if (in == null) throw new IOException("Cannot open " + uri);
+                    int mapped = RegionalModel.install(context, in, SpeciesRegistry.getInstance(context));
+                    message = context.getString(R.string.regional_model_done, mapped);
+                } catch (IOException e) {
+                    Log.e("SettingsActivity", "Installing regional model failed", e);
+                    message = e.toString();
+                }
+                String toast = message;
+                handler.post(() -> {
+                    SoundClassifier.ensembleChanged();
+                    Toast.makeText(context, toast, Toast.LENGTH_LONG).show();
+                    if (preference != null) {
+                        preference.setEnabled(true);
+                        if (RegionalModel.exists(context)) preference.setSummary(R.string.regional_model_installed);
+                        else preference.setSummary(R.string.summary_regional_model);
+                    }
+                });
+            }, "RegionalModel").start();
+        }
+
+        private void updateThresholdsSummary(Preference preference) {
+            int count = SpeciesThresholds.getInstance(requireContext()).count();
+            if (count > 0) preference.setSummary(requireContext().getString(R.string.species_thresholds_count, count));
+            else preference.setSummary(R.string.summary_species_thresholds);
+        }
+
+        private void importThresholds(Uri uri) {
+            Context context = requireContext().getApplicationContext();
+            try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+                if (in == null) throw new IOException("Cannot open " + uri);
+                int count = SpeciesThresholds.getInstance(context).importCsv(in, SpeciesRegistry.getInstance(context));
+                Toast.makeText(context, context.getString(R.string.species_thresholds_imported, count), Toast.LENGTH_SHORT).show();
+            } catch (IOException e) {
+                Log.e("SettingsActivity", "Importing thresholds failed", e);
+                Toast.makeText(context, e.toString(), Toast.LENGTH_LONG).show();
+            }
+            Preference preference = getPreferenceManager().findPreference("species_thresholds");
+            if (preference != null) updateThresholdsSummary(preference);
+        }
     }
 }
\ No newline at end of file
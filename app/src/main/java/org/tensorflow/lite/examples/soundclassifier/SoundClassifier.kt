@@ -18,35 +18,44 @@
 package org.tensorflow.lite.examples.soundclassifier
 
 import android.annotation.SuppressLint
+import android.content.ComponentCallbacks2
 import android.content.Context
+import android.content.SharedPreferences
+import android.content.res.Configuration
 import android.location.Location
+import android.media.AudioDeviceInfo
 import android.media.AudioFormat
+import android.media.AudioManager
 import android.media.AudioRecord
 import android.media.MediaRecorder
+import android.os.Debug
 import android.os.Handler
 import android.os.Looper
 import android.os.SystemClock
 import android.util.Log
 import android.view.View
 import android.webkit.WebSettings
-import android.widget.TextView
 import android.widget.Toast
 import androidx.preference.PreferenceManager
 import org.tensorflow.lite.Interpreter
 import org.tensorflow.lite.examples.soundclassifier.databinding.ActivityMainBinding
 import uk.me.berndporr.iirj.Butterworth
-import java.io.BufferedReader
 import java.io.File
 import java.io.IOException
-import java.io.InputStreamReader
 import java.nio.ByteBuffer
 import java.nio.FloatBuffer
 import java.nio.channels.FileChannel
 import java.nio.file.StandardOpenOption
 import java.time.LocalDate
-import java.util.Locale
+import java.time.ZoneId
 import java.util.Timer
 import java.util.TimerTask
+import java.util.concurrent.Callable
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
 import kotlin.concurrent.scheduleAtFixedRate
 import kotlin.math.ceil
 import kotlin.math.cos
@@ -60,24 +69,19 @@ import kotlin.math.sin
  * The output of the recognition is emitted as LiveData of Map.
  *
  */
-class SoundClassifier(
+class SoundClassifier private constructor(
   context: Context,
-  binding: ActivityMainBinding,
   private val options: Options = Options()
 ) {
   internal var mContext: Context
-  internal var mBinding: ActivityMainBinding
+  /** Views of the attached MainActivity, null while no activity is attached. Only accessed on the main thread.  */
+  internal var mBinding: ActivityMainBinding? = null
   private var database: BirdDBHelper? = null
   init {
     this.mContext = context.applicationContext
-    this.mBinding = binding
     this.database = BirdDBHelper.getInstance(mContext)
   }
   class Options(
-    /** Path of the converted model label file, relative to the assets/ directory.  */
-    val labelsBase: String = "labels",
-    /** Path of the converted .tflite file, relative to the assets/ directory.  */
-    val assetFile: String = "assets.txt",
     /** Path of the converted .tflite file, relative to the assets/ directory.  */
     val modelPath: String = "model.tflite",
     /** Path of the meta model .tflite file, relative to the assets/ directory.  */
@@ -108,18 +112,41 @@ class SoundClassifier(
       if (value) stop() else start()
     }
 
-  /** Names of the model's output classes.  */
-  lateinit var labelList: List<String>
-
-  /** Names of the model's output classes.  */
-  lateinit var assetList: List<String>
+  /** Names, assets and eBird codes of the model's output classes.  */
+  private lateinit var species: SpeciesRegistry
 
   /** How many milliseconds between consecutive model inference calls.  */
   private var inferenceInterval = 800L
 
-  /** The TFLite interpreter instance.  */
-  private lateinit var interpreter: Interpreter
-  private lateinit var meta_interpreter: Interpreter
+  /**
+   * The TFLite interpreters. Replaced by reloadModels() while classification keeps running, used and swapped
+   * only while holding modelLock or metaLock, so an interpreter is never closed during inference.
+   * Null after release() until they are needed again.
+   */
+  private var model: AudioModel? = null
+  private var meta_interpreter: Interpreter? = null
+  private val modelLock = Any()
+  private val metaLock = Any()
+  /** Computes the week tables of new locations in order, off the main thread */
+  private val metaExecutor = Executors.newSingleThreadExecutor { Thread(it, "SoundClassifierMeta") }
+
+  /**
+   * Regional audio model of ensemble mode, run in parallel with the main model on the same input and fused into its
+   * output. Replaced and closed only while holding ensembleLock. Null if ensemble mode is off.
+   */
+  @Volatile
+  private var ensembleMember: EnsembleMember? = null
+  private val ensembleLock = Any()
+
+  /** Runs the ensemble member while recording in ensemble mode.  */
+  private var ensembleExecutor: ExecutorService? = null
+
+  /** Version of the audio model that made the latest classification, stored with each detection.  */
+  @Volatile
+  private var modelVersion: String? = null
+
+  /** Latest location, the meta model is run again after a reload.  */
+  private var lastLocation: Location? = null
 
   /** Audio length (in # of PCM samples) required by the TFLite model.  */
   private var modelInputLength = 0
@@ -131,37 +158,214 @@ class SoundClassifier(
   private var modelNumClasses = 0
   private var metaModelNumClasses = 0
 
+  private var storeEmbeddings = false
 
-  /** Used to hold the real-time probabilities predicted by the model for the output classes.  */
-  private lateinit var predictionProbs: FloatArray
+
+  /** Meta model weights of the output classes at the current location and week.  */
   private lateinit var metaPredictionProbs: FloatArray
 
+  /** Indices of the species with a meta weight above 0, replaced as a whole when the weights change.  */
+  @Volatile
+  private var activeSpecies = IntArray(0)
+
   /** Latest prediction latency in milliseconds.  */
   private var latestPredictionLatencyMs = 0f
 
   private var recognitionTask: TimerTask? = null
+  private var recognitionTimer: Timer? = null
 
   /** Used to record audio samples. */
   private lateinit var audioRecord: AudioRecord
 
-  /** Buffer that holds audio PCM sample that are fed to the TFLite model for inference.  */
-  private lateinit var inputBuffer: FloatBuffer
-  private lateinit var wavWriterBuffer: FloatBuffer
-  private lateinit var metaInputBuffer: FloatBuffer
+  /** Meta model input and output of metaBatchSize weeks, allocated when a week table is computed.  */
+  private var metaInputBuffer: FloatBuffer? = null
+  private var metaOutputBuffer: FloatBuffer? = null
+
+  /** Weeks per meta model run, all weeks if the model accepts a batch.  */
+  private var metaBatchSize = 1
+
+  /** Precomputed meta model weights of a region, used instead of the meta model if enabled.  */
+  @Volatile
+  private var rangeTable: RangeTable? = null
+
+  /** Meta model weights of visited location cells, tables of all weeks.  */
+  private var metaCache: MetaCache? = null
+
+  /** Week table of the current cell, the weights of metaWeek are in metaPredictionProbs.  */
+  private var weekTable: ByteArray? = null
+  private var metaWeek = 0
+
+  /** Time of the next check for a new model week, the classification tick triggers it.  */
+  @Volatile
+  private var nextWeekCheckMillis = Long.MAX_VALUE
+
+  /** Background stages fed with the raw capture stream (continuous recording, LTSA).  */
+  private val audioConsumers = CopyOnWriteArrayList<AudioConsumer>()
+
+  /** True when labels and models are loaded and warmed up, set on the main thread.  */
+  var isReady: Boolean = false
+    private set
+
+  /** Called on the main thread when initialization is complete, cleared on detach.  */
+  var onReady: (() -> Unit)? = null
+
+  /** start() was called before initialization was complete.  */
+  private var startPending = false
+
+  /** Latest location received before initialization was complete.  */
+  private var pendingLocation: Location? = null
+
+  private val createdMillis = SystemClock.elapsedRealtime()
+  private var firstClassificationLogged = false
+  /** Capture rate whose resampling cost was logged, 0 for none */
+  private var resamplerBenchmarkRate = 0
+
+  /** Releases interpreters and buffers a while after classification stopped, see release().  */
+  private val releaseHandler = Handler(Looper.getMainLooper())
+  private val pauseRelease = Runnable { release(RELEASE_MODELS) }
+
+  /** The released audio model is being loaded again.  */
+  private var restoring = false
 
   init {
-    loadLabels(context)
-    loadAssetList(context)
-    setupInterpreter(context)
-    setupMetaInterpreter(context)
-    warmUpModel()
+    initialize()
+    mContext.registerComponentCallbacks(object : ComponentCallbacks2 {
+      override fun onTrimMemory(level: Int) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) release(RELEASE_MODELS)
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) release(RELEASE_BUFFERS)
+      }
+
+      override fun onLowMemory() = release(RELEASE_MODELS)
+
+      override fun onConfigurationChanged(newConfig: Configuration) {}
+    })
+  }
+
+  /** Attach the views of an activity, call on the main thread. */
+  fun attach(binding: ActivityMainBinding) {
+    mBinding = binding
+    if (!isReady) binding.text1.setText(R.string.warming_up)
+    else SpeciesRegistry.getInstance(binding.root.context)  //re-resolve common names after a locale change
+    if (lat != 0f || lon != 0f) showLocation()
+  }
+
+  /** Detach the views of an activity, they are no longer updated. Call on the main thread. */
+  fun detach(binding: ActivityMainBinding) {
+    if (mBinding === binding) {
+      mBinding = null
+      onReady = null
+    }
+  }
+
+  /**
+   * Loads labels, asset list, model and meta model in parallel off the main thread, then warms up the model.
+   * Classification starts automatically when start() was called in the meantime.
+   */
+  private fun initialize() {
+    Thread({
+      val t0 = SystemClock.elapsedRealtime()
+      val executor = Executors.newFixedThreadPool(4)
+      val tasks = listOf(
+        executor.submit { species = SpeciesRegistry.getInstance(mContext) },
+        executor.submit { setupInterpreter(mContext) },
+        executor.submit { setupMetaInterpreter(mContext) },
+        executor.submit { setupEnsemble(mContext, options.warmupRuns) }
+      )
+      tasks.forEach { it.get() }
+      executor.shutdown()
+      val t1 = SystemClock.elapsedRealtime()
+      checkNumClasses()
+      model?.let { warmUpModel(it) }
+      val t2 = SystemClock.elapsedRealtime()
+      Log.i(TAG, "Initialization: loading ${t1 - t0} ms, warm-up ${t2 - t1} ms")
+      Handler(Looper.getMainLooper()).post { onLoaded() }
+    }, "SoundClassifierInit").start()
+  }
+
+  /** Called on the main thread when loading is complete, applies what was requested in the meantime. */
+  private fun onLoaded() {
+    isReady = true
+    mBinding?.text1?.setText("")
+    pendingLocation?.let { runMetaInterpreter(it) }
+    pendingLocation = null
+    if (startPending) {
+      startPending = false
+      start()
+    }
+    onReady?.invoke()
+  }
+
+  /**
+   * Free memory while classification is stopped, called on the main thread. RELEASE_BUFFERS drops the meta interpreter
+   * and its buffers, RELEASE_MODELS also the audio interpreters. Species names, the meta model weights of
+   * the current location and the location itself are kept, the interpreters are loaded again when needed.
+   */
+  private fun release(tier: Int) {
+    if (!isReady || isRecording) return
+    if (meta_interpreter == null && metaOutputBuffer == null && (tier < RELEASE_MODELS || (model == null && ensembleMember == null))) return
+    val nativeHeap = Debug.getNativeHeapAllocatedSize()
+    var javaBytes = 0L
+    synchronized(metaLock) {
+      meta_interpreter?.close()
+      meta_interpreter = null
+      javaBytes += ((metaInputBuffer?.capacity() ?: 0) + (metaOutputBuffer?.capacity() ?: 0)) * 4L
+      metaInputBuffer = null
+      metaOutputBuffer = null
+    }
+    if (tier >= RELEASE_MODELS) synchronized(modelLock) {
+      model?.let {
+        javaBytes += it.embeddingLength * 4L
+        it.interpreter.close()
+      }
+      model = null
+    }
+    if (tier >= RELEASE_MODELS) synchronized(ensembleLock) {
+      ensembleMember?.let {
+        javaBytes += it.model.numClasses * 8L
+        it.model.interpreter.close()
+      }
+      ensembleMember = null
+    }
+    val freedNative = nativeHeap - Debug.getNativeHeapAllocatedSize()
+    Log.i(TAG, "Released ${if (tier >= RELEASE_MODELS) "models" else "buffers"}: native heap ${freedNative / 1024} kB, Java heap ${javaBytes / 1024} kB")
+  }
+
+  /** Load the released audio model again and warm it up once, classification starts when it is ready. */
+  private fun restore() {
+    if (restoring) return
+    restoring = true
+    isReady = false
+    Thread({
+      val t0 = SystemClock.elapsedRealtime()
+      setupInterpreter(mContext)
+      val audioModel = model
+      if (audioModel != null) warmUpModel(audioModel, 1)
+      else modelInputLength = 0  //recognition reports the model as unavailable
+      setupEnsemble(mContext, 1)
+      Log.i(TAG, "Model restored in ${SystemClock.elapsedRealtime() - t0} ms")
+      Handler(Looper.getMainLooper()).post {
+        restoring = false
+        onLoaded()
+      }
+    }, "SoundClassifierRestore").start()
   }
 
   /**
    * Starts sound classification, which triggers running of
    * `recordingThread` and `recognitionThread`.
+   * Before initialization is complete the start is deferred.
    */
   fun start() {
+    releaseHandler.removeCallbacks(pauseRelease)
+    if (!isReady) {
+      startPending = true
+      return
+    }
+    if (model == null && modelInputLength > 0) {
+      startPending = true
+      restore()
+      return
+    }
     if (!isPaused) {
       startAudioRecord()
     }
@@ -172,214 +376,313 @@ class SoundClassifier(
    * `recognitionThread`.
    */
   fun stop() {
+    startPending = false
+    releaseHandler.removeCallbacks(pauseRelease)
+    releaseHandler.postDelayed(pauseRelease, PAUSE_RELEASE_MILLIS)
     if (isClosed || !isRecording) return
     recognitionTask?.cancel()
+    recognitionTask = null
+    recognitionTimer?.cancel()
+    recognitionTimer = null
+    ensembleExecutor?.shutdown()
+    ensembleExecutor = null
 
     audioRecord.stop()
+    audioRecord.release()
+    for (consumer in audioConsumers) consumer.stop()
+    audioConsumers.clear()
     isRecording = false
 
   }
 
 
-  /** Retrieve asset list from "asset_list" file */
-  private fun loadAssetList(context: Context) {
+  private fun setupInterpreter(context: Context) {
+    val audioModel = loadModel(context) ?: return
+    model = audioModel
+    modelInputLength = audioModel.inputLength
+    modelNumClasses = audioModel.numClasses
 
-    try {
-      val reader =
-        BufferedReader(InputStreamReader(context.assets.open(options.assetFile)))
-      val wordList = mutableListOf<String>()
-      reader.useLines { lines ->
-        lines.forEach {
-          wordList.add(it.trim())
-        }
-      }
-      assetList = wordList.map { it }
-    } catch (e: IOException) {
-      Log.e(TAG, "Failed to read labels ${options.assetFile}: ${e.message}")
-    }
   }
-  
-  /** Retrieve labels from "labels.txt" file */
-  private fun loadLabels(context: Context) {
-    val localeList = context.resources.configuration.locales
-    var language = localeList.get(0).language
 
-    if (language == "en") {
-      val country = localeList.get(0).country
-      language = when (country) {
-          "GB" -> "en_uk"
-          else -> "en"
-      }
-    } else if (language == "pt") {
-      val country = localeList.get(0).country
-      language = when (country) {
-          "BR" -> "pt_BR"
-          else -> "pt_PT"
-      }
+  /** Map the model file and create its interpreter, null if the model cannot be loaded */
+  private fun loadModel(context: Context): AudioModel? {
+    val audioModel = try {
+      val tfliteBuffer = mapModelFile(context, options.modelPath)
+      AudioModel(Interpreter(tfliteBuffer, ModelBenchmark.interpreterOptions(context)), Downloader.modelVersion(context))
+    } catch (e: IOException) {
+      Log.e(TAG, "Failed to load TFLite model - ${e.message}")
+      return null
     }
+    Log.i(TAG, "TFLite model ${audioModel.version} input length: ${audioModel.inputLength}, classes: ${audioModel.numClasses}, embedding length: ${audioModel.embeddingLength}")
+    return audioModel
+  }
 
-    var filename = options.labelsBase+"_${language}.txt"
-
-    //Check if file exists
-    val assetManager = context.assets // Replace 'assets' with actual AssetManager instance
-    try {
-      val mapList = assetManager.list("")?.toMutableList()
-
-      if (mapList != null) {
-        if (!mapList.contains(filename)) {
-          filename = options.labelsBase+"_en.txt"
+  /**
+   * Load and warm up the regional model if ensemble mode is on and a model is installed, then replace the current
+   * one. A running classification continues with the current one in the meantime.
+   */
+  private fun setupEnsemble(context: Context, warmupRuns: Int) {
+    val sharedPref = PreferenceManager.getDefaultSharedPreferences(context)
+    var member: EnsembleMember? = null
+    if (sharedPref.getBoolean("ensemble", false) && RegionalModel.exists(context)) {
+      try {
+        val classMap = RegionalModel.load(context, SpeciesRegistry.getInstance(context))
+        val interpreter = Interpreter(mapModelFile(context, RegionalModel.MODEL_FILE), ModelBenchmark.interpreterOptions(context))
+        member = EnsembleMember(AudioModel(interpreter, "regional"), classMap)
+        Log.i(TAG, "Regional model input length: ${member.model.inputLength}, classes: ${member.model.numClasses}")
+        if (member.model.numClasses != classMap.numClasses) {
+          Log.e(TAG, "Regional model has ${member.model.numClasses} classes but ${classMap.numClasses} labels")
+          interpreter.close()
+          member = null
         }
+        member?.let { warmUpModel(it.model, warmupRuns) }
+      } catch (e: Exception) {
+        Log.e(TAG, "Failed to load regional model - ${e.message}")
       }
-    } catch (ex: IOException) {
-      ex.printStackTrace()
-      filename = options.labelsBase+"_en.txt"
     }
-
-    Log.i(TAG,filename)
-    try {
-      val reader =
-        BufferedReader(InputStreamReader(context.assets.open(filename)))
-      val wordList = mutableListOf<String>()
-      reader.useLines { lines ->
-        lines.forEach {
-          wordList.add(it)
-        }
-      }
-      labelList = wordList.map { it.toTitleCase() }
-      Log.i(TAG, "Label list entries: ${labelList.size}")
-    } catch (e: IOException) {
-      Log.e(TAG, "Failed to read labels ${filename}: ${e.message}")
+    val old = synchronized(ensembleLock) {
+      val old = ensembleMember
+      ensembleMember = member
+      old
     }
+    old?.model?.interpreter?.close()
   }
 
-  private fun setupInterpreter(context: Context) {
-    try {
-      val modelFilePath = context.getDir("filesdir", Context.MODE_PRIVATE).absolutePath + "/"+ options.modelPath
-      Log.i(TAG, "Trying to create TFLite buffer from $modelFilePath")
-      val modelFile = File(modelFilePath)
-      val tfliteBuffer: ByteBuffer = FileChannel.open(modelFile.toPath(), StandardOpenOption.READ).use { channel ->
-        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
-      }
-      Log.i(TAG, "Done creating TFLite buffer from $modelFilePath")
+  /** Load the regional model again after it was installed or ensemble mode was switched */
+  private fun reloadEnsemble() {
+    if (!isReady) return  //initialization loads the current model
+    Thread({ setupEnsemble(mContext, 1) }, "SoundClassifierEnsemble").start()
+  }
 
-      interpreter = Interpreter(tfliteBuffer, Interpreter.Options())
+  /**
+   * Create the meta model interpreter, with a batch of all model weeks if the model supports it. Install it with
+   * useMetaInterpreter.
+   */
+  private fun loadMetaInterpreter(context: Context): Interpreter? {
+    val interpreter = try {
+      Interpreter(mapModelFile(context, options.metaModelPath), Interpreter.Options())
     } catch (e: IOException) {
       Log.e(TAG, "Failed to load TFLite model - ${e.message}")
-      return
+      return null
     }
-    // Inspect input and output specs.
-    val inputShape = interpreter.getInputTensor(0).shape()
-    Log.i(TAG, "TFLite model input shape: ${inputShape.contentToString()}")
-    modelInputLength = inputShape[1]
-
-    val outputShape = interpreter.getOutputTensor(0).shape()
-    Log.i(TAG, "TFLite output shape: ${outputShape.contentToString()}")
-    modelNumClasses = outputShape[1]
-    if (modelNumClasses != labelList.size) {
-      Log.e(
-        TAG,
-        "Mismatch between metadata number of classes (${labelList.size})" +
-                " and model output length ($modelNumClasses)"
-      )
+    val inputLength = interpreter.getInputTensor(0).shape()[1]
+    try {
+      interpreter.resizeInput(0, intArrayOf(MetaCache.WEEKS, inputLength))
+      interpreter.allocateTensors()
+    } catch (e: RuntimeException) {
+      Log.w(TAG, "Meta model does not accept a batch of weeks - ${e.message}")
+      interpreter.resizeInput(0, intArrayOf(1, inputLength))
+      interpreter.allocateTensors()
     }
-    // Fill the array with NaNs initially.
-    predictionProbs = FloatArray(modelNumClasses) { Float.NaN }
-
-    inputBuffer = FloatBuffer.allocate(modelInputLength)
+    return interpreter
+  }
 
+  /** Make interpreter the meta interpreter, with its batch size. Call while holding metaLock. */
+  private fun useMetaInterpreter(interpreter: Interpreter) {
+    meta_interpreter = interpreter
+    metaBatchSize = interpreter.getInputTensor(0).shape()[0]
   }
 
   private fun setupMetaInterpreter(context: Context) {
-
-    try {
-      val metaModelFilePath = context.getDir("filesdir", Context.MODE_PRIVATE).absolutePath + "/"+ options.metaModelPath
-      Log.i(TAG, "Trying to create TFLite buffer from $metaModelFilePath")
-      val metaModelFile = File(metaModelFilePath)
-      val tfliteBuffer: ByteBuffer = FileChannel.open(metaModelFile.toPath(), StandardOpenOption.READ).use { channel ->
-        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
-      }
-      Log.i(TAG, "Done creating TFLite buffer from $metaModelFilePath")
-
-      meta_interpreter = Interpreter(tfliteBuffer, Interpreter.Options())
-    } catch (e: IOException) {
-      Log.e(TAG, "Failed to load TFLite model - ${e.message}")
+    val sharedPref = PreferenceManager.getDefaultSharedPreferences(context)
+    val table = if (sharedPref.getBoolean("meta_lookup", false)) RangeTable.open(context, Downloader.metaModelMD5) else null
+    if (table != null) {
+      // The meta model is only loaded for locations outside the table
+      rangeTable = table
+      metaModelNumClasses = table.numClasses
+      metaPredictionProbs = FloatArray(metaModelNumClasses) { 1f }
+      updateActiveSpecies()
+      metaCache = MetaCache(context, Downloader.metaModelMD5, metaModelNumClasses)
       return
     }
+
+    val interpreter = loadMetaInterpreter(context) ?: return
+    synchronized(metaLock) { useMetaInterpreter(interpreter) }
     // Inspect input and output specs.
-    val metaInputShape = meta_interpreter.getInputTensor(0).shape()
+    val metaInputShape = interpreter.getInputTensor(0).shape()
     Log.i(TAG, "TFLite meta model input shape: ${metaInputShape.contentToString()}")
     metaModelInputLength = metaInputShape[1]
 
-    val metaOutputShape = meta_interpreter.getOutputTensor(0).shape()
+    val metaOutputShape = interpreter.getOutputTensor(0).shape()
     Log.i(TAG, "TFLite meta model output shape: ${metaOutputShape.contentToString()}")
     metaModelNumClasses = metaOutputShape[1]
-    if (metaModelNumClasses != labelList.size) {
+    // Fill the array with 1 initially.
+    metaPredictionProbs = FloatArray(metaModelNumClasses) { 1f }
+    updateActiveSpecies()
+    metaCache = MetaCache(context, Downloader.metaModelMD5, metaModelNumClasses)
+
+  }
+
+  private fun checkNumClasses() {
+    if (modelNumClasses != species.size()) {
       Log.e(
         TAG,
-        "Mismatch between metadata number of classes (${labelList.size})" +
+        "Mismatch between metadata number of classes (${species.size()})" +
+                " and model output length ($modelNumClasses)"
+      )
+    }
+    if (metaModelNumClasses != species.size()) {
+      Log.e(
+        TAG,
+        "Mismatch between metadata number of classes (${species.size()})" +
                 " and meta model output length ($metaModelNumClasses)"
       )
     }
-    // Fill the array with 1 initially.
-    metaPredictionProbs = FloatArray(metaModelNumClasses) { 1f }
-    metaInputBuffer = FloatBuffer.allocate(metaModelInputLength)
+  }
 
+  private fun showLocation() {
+    mBinding?.gps?.setText(mContext.getString(R.string.latitude)+": " + (round(lat*100.0)/100.0).toString() + " / " + mContext.getString(R.string.longitude) + ": " + (round(lon*100.0)/100).toString())
   }
 
   fun runMetaInterpreter(location: Location) {
-    val dayOfYear = LocalDate.now().dayOfYear
-    val week = ceil( dayOfYear*48.0/366.0) //model year has 48 weeks
+    if (!isReady) {
+      pendingLocation = location  //applied when initialization is complete
+      return
+    }
+    lastLocation = location
     lat = location.latitude.toFloat()
     lon = location.longitude.toFloat()
 
-    Handler(Looper.getMainLooper()).post {
-      mBinding.gps.setText(mContext.getString(R.string.latitude)+": " + (round(lat*100.0)/100.0).toString() + " / " + mContext.getString(R.string.longitude) + ": " + (round(lon*100.0)/100).toString())
+    Handler(Looper.getMainLooper()).post { showLocation() }
+
+    // The meta model and the cache files are slow, only the new table is applied on the main thread
+    val latitude = lat
+    val longitude = lon
+    val lookup = PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean("meta_lookup", false)
+    metaExecutor.execute {
+      val range = if (lookup) {
+        rangeTable ?: RangeTable.open(mContext, Downloader.metaModelMD5)?.also { rangeTable = it }
+      } else null
+      val table = if (range != null && range.contains(latitude, longitude)) {
+        range.weekTable(latitude, longitude)
+      } else {
+        val cache = metaCache ?: return@execute
+        val cacheKey = MetaCache.key(latitude, longitude)
+        cache.get(cacheKey) ?: computeWeekTable(cache, latitude, longitude)?.also { cache.put(cacheKey, it) } ?: return@execute
+      }
+      Handler(Looper.getMainLooper()).post {
+        if (lastLocation !== location) return@post  //a newer location is being computed
+        weekTable = table
+        metaWeek = 0
+        updateWeek()
+      }
     }
+  }
 
-    val weekMeta = cos(Math.toRadians(week * 7.5)) + 1.0
-
-    metaInputBuffer.put(0, lat)
-    metaInputBuffer.put(1, lon)
-    metaInputBuffer.put(2, weekMeta.toFloat())
-    metaInputBuffer.rewind() // Reset position to beginning of buffer
-    val metaOutputBuffer = FloatBuffer.allocate(metaModelNumClasses)
-    metaOutputBuffer.rewind()
-    meta_interpreter.run(metaInputBuffer, metaOutputBuffer)
-    metaOutputBuffer.rewind()
-    metaOutputBuffer.get(metaPredictionProbs) // Copy data to metaPredictionProbs.
-
-
-    for (i in metaPredictionProbs.indices) {
-      metaPredictionProbs[i] =
-        if (metaPredictionProbs[i] >= options.metaProbabilityThreshold1) {
-        1f
-      } else if (metaPredictionProbs[i] >= options.metaProbabilityThreshold2) {
-        0.8f
-      } else if (metaPredictionProbs[i] >= options.metaProbabilityThreshold3) {
-        0.5f
-      } else {
-        0f
+  /** Run the meta model for all model weeks at a location, in batches of metaBatchSize weeks. Slow, call on metaExecutor. */
+  private fun computeWeekTable(cache: MetaCache, lat: Float, lon: Float): ByteArray? {
+    val t0 = SystemClock.elapsedRealtime()
+    val table = cache.newTable()
+    val weights = FloatArray(metaModelNumClasses)
+    synchronized(metaLock) {
+      val interpreter = meta_interpreter ?: loadMetaInterpreter(mContext)?.also { useMetaInterpreter(it) } ?: return null
+      val inputLength = interpreter.getInputTensor(0).shape()[1]
+      val input = metaInputBuffer?.takeIf { it.capacity() == metaBatchSize * inputLength }
+        ?: FloatBuffer.allocate(metaBatchSize * inputLength).also { metaInputBuffer = it }
+      val output = metaOutputBuffer?.takeIf { it.capacity() == metaBatchSize * metaModelNumClasses }
+        ?: FloatBuffer.allocate(metaBatchSize * metaModelNumClasses).also { metaOutputBuffer = it }
+      for (firstWeek in 1..MetaCache.WEEKS step metaBatchSize) {
+        for (b in 0 until metaBatchSize) {
+          input.put(b * inputLength, lat)
+          input.put(b * inputLength + 1, lon)
+          input.put(b * inputLength + 2, metaWeekInput((firstWeek + b).toDouble()))
+        }
+        input.rewind()
+        output.rewind()
+        interpreter.run(input, output)
+        for (b in 0 until metaBatchSize) {
+          for (i in weights.indices) weights[i] = metaWeight(output.get(b * metaModelNumClasses + i), options)
+          MetaCache.pack(weights, table, firstWeek + b)
+        }
       }
     }
+    Log.i(TAG, "Meta model weeks computed in ${SystemClock.elapsedRealtime() - t0} ms, batch size $metaBatchSize")
+    return table
   }
 
-  private fun warmUpModel() {
-    generateDummyAudioInput(inputBuffer)
-    for (n in 0 until options.warmupRuns) {
+  /** Apply the weights of the current model week from the week table if the week changed. Call on the main thread. */
+  private fun updateWeek() {
+    val today = LocalDate.now()
+    nextWeekCheckMillis = today.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli()
+    val table = weekTable ?: return
+    val week = modelWeek(today.dayOfYear).toInt()
+    if (week == metaWeek) return
+    if (metaWeek != 0) Log.i(TAG, "Model week changed from $metaWeek to $week")
+    metaWeek = week
+    MetaCache.unpack(table, week, metaPredictionProbs)
+    updateActiveSpecies()
+  }
+
+  /** Collect the species with a meta weight above 0, the per-tick post-processing only looks at these */
+  private fun updateActiveSpecies() {
+    var count = 0
+    for (weight in metaPredictionProbs) if (weight > 0f) count++
+    val active = IntArray(count)
+    var k = 0
+    for (i in metaPredictionProbs.indices) if (metaPredictionProbs[i] > 0f) active[k++] = i
+    activeSpecies = active
+    Log.i(TAG, "Active species: $count of ${metaPredictionProbs.size}")
+  }
+
+  private fun warmUpModel(audioModel: AudioModel, runs: Int = options.warmupRuns) {
+    val warmUpBuffer = FloatBuffer.allocate(audioModel.inputLength)
+    generateDummyAudioInput(warmUpBuffer)
+    for (n in 0 until runs) {
 
       // Create input and output buffers.
-      val outputBuffer = FloatBuffer.allocate(modelNumClasses)
-      inputBuffer.rewind()
+      val outputBuffer = FloatBuffer.allocate(audioModel.numClasses)
+      warmUpBuffer.rewind()
       outputBuffer.rewind()
-      interpreter.run(inputBuffer, outputBuffer)
+      audioModel.interpreter.run(warmUpBuffer, outputBuffer)
 
     }
   }
 
+  /**
+   * Load the model files again, e.g. after a variant change or update, while classification continues with the
+   * current interpreters. The new interpreters are warmed up in the background and swapped in between two
+   * inferences, the old ones are closed afterwards. Models with different input or output sizes are rejected.
+   */
+  fun reloadModels() {
+    if (!isReady) return  //initialization loads the current files
+    Thread({
+      val t0 = SystemClock.elapsedRealtime()
+      val audioModel = loadModel(mContext) ?: return@Thread
+      if (audioModel.inputLength != modelInputLength || audioModel.numClasses != modelNumClasses) {
+        Log.e(TAG, "Reload rejected, model ${audioModel.version} has input length ${audioModel.inputLength} and ${audioModel.numClasses} classes")
+        audioModel.interpreter.close()
+        return@Thread
+      }
+      warmUpModel(audioModel)
+      val oldModel: AudioModel?
+      var oldMetaInterpreter: Interpreter? = null
+      synchronized(modelLock) {
+        oldModel = model
+        if (oldModel != null) model = audioModel  //a released model is loaded from the new file when needed
+      }
+      // Loaded under the lock, so computeWeekTable never sees a batch size of another interpreter
+      synchronized(metaLock) {
+        val metaInterpreter = loadMetaInterpreter(mContext)
+        if (metaInterpreter != null && metaInterpreter.getOutputTensor(0).shape()[1] != metaModelNumClasses) {
+          Log.e(TAG, "Reload of meta model rejected, output length ${metaInterpreter.getOutputTensor(0).shape()[1]}")
+          metaInterpreter.close()
+        } else if (metaInterpreter != null) {
+          oldMetaInterpreter = meta_interpreter
+          useMetaInterpreter(metaInterpreter)
+        }
+      }
+      (oldModel ?: audioModel).interpreter.close()
+      oldMetaInterpreter?.close()
+      Log.i(TAG, "Models swapped from ${oldModel?.version} to ${audioModel.version} in ${SystemClock.elapsedRealtime() - t0} ms")
+      Handler(Looper.getMainLooper()).post { lastLocation?.let { runMetaInterpreter(it) } }
+    }, "SoundClassifierReload").start()
+  }
+
   private fun generateDummyAudioInput(inputBuffer: FloatBuffer) {
     val twoPiTimesFreq = 2 * Math.PI.toFloat() * 1000f
-    for (i in 0 until modelInputLength) {
-      val x = i.toFloat() / (modelInputLength - 1)
+    val length = inputBuffer.capacity()
+    for (i in 0 until length) {
+      val x = i.toFloat() / (length - 1)
       inputBuffer.put(i, sin(twoPiTimesFreq * x.toDouble()).toFloat())
     }
   }
@@ -394,32 +697,62 @@ class SoundClassifier(
   }
 
   @SuppressLint("MissingPermission")  //Permission already requested in MainActivity
-  private fun setupAudioRecord() {
+  private fun createAudioRecord(sharedPref: SharedPreferences, sampleRate: Int): AudioRecord {
     var bufferSize = AudioRecord.getMinBufferSize(
-      options.sampleRate,
+      sampleRate,
       AudioFormat.CHANNEL_IN_MONO,
       AudioFormat.ENCODING_PCM_16BIT
     )
     Log.i(TAG, "min buffer size = $bufferSize")
     if (bufferSize == AudioRecord.ERROR || bufferSize == AudioRecord.ERROR_BAD_VALUE) {
-      bufferSize = options.sampleRate * 2
+      bufferSize = sampleRate * 2
       Log.w(TAG, "bufferSize has error or bad value")
     }
     // The buffer of AudioRecord should be larger than what model requires.
-    val modelRequiredBufferSize = 2 * modelInputLength * Short.SIZE_BYTES
+    val modelRequiredBufferSize = (2L * modelInputLength * sampleRate / options.sampleRate).toInt() * Short.SIZE_BYTES
     if (bufferSize < modelRequiredBufferSize) {
       bufferSize = modelRequiredBufferSize
     }
     Log.i(TAG, "bufferSize = $bufferSize")
-    val sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext)
-    audioRecord = AudioRecord(
+    return AudioRecord(
       // including MIC, UNPROCESSED, and CAMCORDER.
       Integer.parseInt(sharedPref.getString("audio_source", MediaRecorder.AudioSource.UNPROCESSED.toString())),
-      options.sampleRate,
+      sampleRate,
       AudioFormat.CHANNEL_IN_MONO,
       AudioFormat.ENCODING_PCM_16BIT,
       bufferSize
     )
+  }
+
+  /**
+   * Rate to record at: the capture_rate preference, or with "0" a native rate of the input device, so the audio
+   * framework does not resample. Other rates than the model rate are converted by a PolyphaseResampler.
+   */
+  private fun captureRate(sharedPref: SharedPreferences): Int {
+    val preferred = Integer.parseInt(sharedPref.getString("capture_rate", "0")!!)
+    if (preferred > 0) return preferred
+    val audioManager = mContext.getSystemService(Context.AUDIO_SERVICE) as AudioManager
+    val devices = audioManager.getDevices(AudioManager.GET_DEVICES_INPUTS)
+    // An attached USB or wired microphone is routed instead of the built-in one
+    val device = devices.firstOrNull { it.type in EXTERNAL_INPUTS }
+      ?: devices.firstOrNull { it.type == AudioDeviceInfo.TYPE_BUILTIN_MIC }
+    val rates = device?.sampleRates
+    // No rates means the device takes any rate
+    if (rates == null || rates.isEmpty() || options.sampleRate in rates) return options.sampleRate
+    // The lowest rate above the model rate costs the least to convert, lower rates lose bandwidth
+    return rates.filter { it >= options.sampleRate }.minOrNull() ?: rates.max()
+  }
+
+  private fun setupAudioRecord() {
+    val sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext)
+    var captureRate = captureRate(sharedPref)
+    audioRecord = createAudioRecord(sharedPref, captureRate)
+    if (audioRecord.state != AudioRecord.STATE_INITIALIZED && captureRate != options.sampleRate) {
+      Log.w(TAG, "AudioRecord failed to initialize at $captureRate Hz, using ${options.sampleRate} Hz")
+      audioRecord.release()
+      captureRate = options.sampleRate
+      audioRecord = createAudioRecord(sharedPref, captureRate)
+    }
     if (audioRecord.state != AudioRecord.STATE_INITIALIZED) {
       Log.e(TAG, "AudioRecord failed to initialize")
       return
@@ -429,8 +762,23 @@ class SoundClassifier(
     audioRecord.startRecording()
     Log.i(TAG, "Successfully started AudioRecord recording")
 
+    if (sharedPref.getBoolean("continuous_recording", false)) {
+      val segmentSeconds = sharedPref.getInt("segment_length", 10) * 60
+      val segmentRecorder = SegmentRecorder(database, options.sampleRate, segmentSeconds)
+      if (segmentRecorder.start(System.currentTimeMillis())) audioConsumers.add(segmentRecorder)
+    }
+    if (sharedPref.getBoolean("ltsa", false)) {
+      val ltsaRecorder = LtsaRecorder(mContext, options.sampleRate, sharedPref.getInt("ltsa_interval", 60))
+      if (ltsaRecorder.start(System.currentTimeMillis())) audioConsumers.add(ltsaRecorder)
+    }
+    val spectrogramView = mBinding?.spectrogram
+    if (spectrogramView != null && sharedPref.getBoolean("show_spectrogram", false)) {
+      val spectrogramAnalyzer = SpectrogramAnalyzer(options.sampleRate, spectrogramView)
+      if (spectrogramAnalyzer.start()) audioConsumers.add(spectrogramAnalyzer)
+    }
+
     // Start recognition (model inference) thread.
-    startRecognition()
+    startRecognition(captureRate)
   }
 
   private fun loadAudio(audioBuffer: ShortArray): Int {
@@ -459,30 +807,72 @@ class SoundClassifier(
     return 0
   }
 
-  private fun startRecognition() {
+  /** @param captureRate sample rate of audioRecord, converted to the model rate on the recognition thread */
+  private fun startRecognition(captureRate: Int) {
     if (modelInputLength <= 0 || modelNumClasses <= 0) {
       Log.e(TAG, "Switches: Cannot start recognition because model is unavailable.")
       return
     }
     val sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext)
-    val highPass = sharedPref.getInt("high_pass",0)
-    val butterworth = Butterworth()
-    butterworth.highPass(6, 48000.0, highPass.toDouble())
+    storeEmbeddings = sharedPref.getBoolean("store_embeddings", false)
+    // Scores smoothed over consecutive windows, null to score each window on its own
+    val smoothing = sharedPref.getString("smoothing", "0")
+    val smooth = smoothing == DetectionSmoother.MODE_EMA || smoothing == DetectionSmoother.MODE_MAX
+    val allSpecies = IntArray(modelNumClasses) { it }
+    // Ensemble mode: the regional model runs here. Always created, so switching ensemble mode on applies as soon as
+    // the regional model is loaded, the thread only starts with the first submit.
+    val executor = Executors.newSingleThreadExecutor()
+    ensembleExecutor = executor
+    ensembleMember?.let {
+      if (it.model.inputLength > modelInputLength) Log.e(TAG, "Regional model skipped, its input of ${it.model.inputLength} samples is longer than the main model input")
+    }
+    // Latencies summed for the log
+    var mainNanos = 0L
+    var regionalNanos = 0L
+    var windowNanos = 0L
+    var latencyWindows = 0
 
+    // Buffers of this recording session, freed when it stops
     val circularBuffer = ShortArray(modelInputLength)
+    val recordingBuffer = ShortArray(modelInputLength)
+    // Audio at another rate is converted before it reaches the consumers and the model
+    val resampler = if (captureRate != options.sampleRate) PolyphaseResampler(captureRate, options.sampleRate) else null
+    val captureBuffer = if (resampler != null) ShortArray(resampler.maxInput(modelInputLength)) else recordingBuffer
+    if (resampler != null) {
+      Log.i(TAG, "Resampling $captureRate Hz to ${options.sampleRate} Hz")
+      // Measured once per capture rate, on its own thread
+      if (resamplerBenchmarkRate != captureRate) {
+        resamplerBenchmarkRate = captureRate
+        Thread({
+          Log.i(TAG, "Resampling $captureRate Hz to ${options.sampleRate} Hz takes " +
+                  "%.2f ms CPU per second of audio".format(PolyphaseResampler.benchmark(captureRate, options.sampleRate, 1)))
+        }, "ResamplerBenchmark").start()
+      }
+    }
+    // One pipeline per configuration, configurations with the same filter share an input group
+    val groups = ArrayList<InputGroup>()
+    val pipelines = ClassificationConfig.fromPreferences(mContext).mapIndexed { n, config ->
+      val group = groups.firstOrNull { it.highPass == config.highPass }
+        ?: InputGroup(config.highPass, modelInputLength, modelNumClasses).also { groups.add(it) }
+      // Detection threshold of each class, species without a calibrated threshold use the global one
+      val thresholds = SpeciesThresholds.getInstance(mContext).resolve(config.threshold, modelNumClasses)
+      Pipeline(config, group, thresholds, if (smooth) DetectionSmoother(smoothing) else null, n == 0)
+    }
+    if (pipelines.size > 1) Log.i(TAG, "A/B mode: ${pipelines.size} configurations, ${groups.size} model inputs")
 
     var j = 0 // Indices for the circular buffer next write
 
     Log.w(TAG, "recognitionPeriod:"+inferenceInterval)
-    recognitionTask = Timer().scheduleAtFixedRate(inferenceInterval, inferenceInterval) task@{
-      val outputBuffer = FloatBuffer.allocate(modelNumClasses)
-      val recordingBuffer = ShortArray(modelInputLength)
-
+    val timer = Timer("SoundClassifier")
+    recognitionTimer = timer
+    recognitionTask = timer.scheduleAtFixedRate(inferenceInterval, inferenceInterval) task@{
       // Load new audio samples
-      val sampleCounts = loadAudio(recordingBuffer)
+      val capturedSamples = loadAudio(captureBuffer)
+      val sampleCounts = if (resampler != null) resampler.process(captureBuffer, capturedSamples, recordingBuffer) else capturedSamples
       if (sampleCounts == 0) {
         return@task
       }
+      for (consumer in audioConsumers) consumer.write(recordingBuffer, sampleCounts)
 
 
       // Copy new data into the circular buffer
@@ -491,17 +881,13 @@ class SoundClassifier(
         j = (j + 1) % circularBuffer.size
       }
 
-      // Feed data to the input buffer.
       var samplesAreAllZero = true
-      for (i in 0 until modelInputLength) {
-          val s = circularBuffer[(i + j) % modelInputLength]
-        if (samplesAreAllZero && s.toInt() != 0) {
+      for (s in circularBuffer) {
+        if (s.toInt() != 0) {
           samplesAreAllZero = false
+          break
         }
-        if (highPass==0)  inputBuffer.put(i, s.toFloat())
-        else inputBuffer.put(i, butterworth.filter(s.toDouble()).toFloat())
       }
-
       if (samplesAreAllZero) {
         Log.w(TAG, mContext.resources.getString(R.string.samples_zero))
         Handler(Looper.getMainLooper()).post {
@@ -511,34 +897,83 @@ class SoundClassifier(
         return@task
       }
 
-      val t0 = SystemClock.elapsedRealtimeNanos()
-      inputBuffer.rewind()
-      outputBuffer.rewind()
-      interpreter.run(inputBuffer, outputBuffer)
-      outputBuffer.rewind()
-      outputBuffer.get(predictionProbs) // Copy data to predictionProbs.
-      wavWriterBuffer = inputBuffer.duplicate();
+      // Feed data to the input buffers, each group reads the shared circular buffer through its filter
+      for (group in groups) group.fill(circularBuffer, j)
 
-      val probList = mutableListOf<Float>()
-      if (mBinding.checkIgnoreMeta.isChecked){
-        for (value in predictionProbs) {
-          probList.add(1 / (1 + kotlin.math.exp(-value)))  //apply sigmoid
+      val t0 = SystemClock.elapsedRealtimeNanos()
+      // The regional model runs on the executor while the main model runs on this thread
+      val member = ensembleMember?.takeIf { it.model.inputLength <= modelInputLength }
+      for (group in groups) {
+        group.regionalResult = if (member != null) {
+          if (group.regionalLogits.size != member.model.numClasses) group.regionalLogits = FloatArray(member.model.numClasses)
+          try {
+            executor.submit(Callable { runEnsembleMember(member, group.input, group.regionalLogits) })
+          } catch (e: RejectedExecutionException) {
+            null  //stopped
+          }
+        } else null
+      }
+      val audioModel = synchronized(modelLock) {
+        val audioModel = model ?: return@task
+        for (group in groups) group.run(audioModel, storeEmbeddings)
+        audioModel
+      }
+      modelVersion = audioModel.version
+      val t1 = SystemClock.elapsedRealtimeNanos()
+      for (group in groups) {
+        group.logits.copyInto(group.scores)
+        group.fused = false
+      }
+      if (member != null && groups[0].regionalResult != null) {
+        // Read per window like the ensemble switch, so changed settings apply to a running classification
+        val fusion = sharedPref.getString("ensemble_fusion", RegionalModel.FUSION_MAX)
+        val regionalWeight = sharedPref.getInt("regional_weight", 50) / 100f
+        for (group in groups) {
+          val nanos = group.regionalResult?.get() ?: -1L
+          if (nanos >= 0) {
+            member.classMap.fuse(group.scores, group.regionalLogits, fusion, regionalWeight)
+            group.fused = true
+          }
+          regionalNanos += nanos.coerceAtLeast(0)
         }
-      } else {
-        for (i in predictionProbs.indices) {
-          probList.add( metaPredictionProbs[i] / (1+kotlin.math.exp(-predictionProbs[i])) )  //apply sigmoid
+        mainNanos += t1 - t0
+        windowNanos += SystemClock.elapsedRealtimeNanos() - t0
+        if (++latencyWindows == LATENCY_LOG_WINDOWS) {
+          Log.i(TAG, "Mean latency of $latencyWindows windows: main model ${mainNanos / latencyWindows / NANOS_IN_MILLIS} ms, " +
+                  "regional model ${regionalNanos / latencyWindows / NANOS_IN_MILLIS} ms, combined ${windowNanos / latencyWindows / NANOS_IN_MILLIS} ms")
+          mainNanos = 0L
+          regionalNanos = 0L
+          windowNanos = 0L
+          latencyWindows = 0
         }
       }
+      if (System.currentTimeMillis() >= nextWeekCheckMillis) {
+        nextWeekCheckMillis = Long.MAX_VALUE
+        Handler(Looper.getMainLooper()).post { updateWeek() }
+      }
+      if (!firstClassificationLogged) {
+        firstClassificationLogged = true
+        Log.i(TAG, "Time to first classification: ${SystemClock.elapsedRealtime() - createdMillis} ms")
+      }
 
-      if (mBinding.progressHorizontal.isIndeterminate){  //if start/stop button set to "running"
-        probList.withIndex().also {
-          val max = it.maxByOrNull { entry -> entry.value }
-          val timeInMillis = System.currentTimeMillis()
-          updateTextView(max, mBinding.text1, timeInMillis)
-          updateImage(max)
-          //after finding the maximum probability and its corresponding label (max), we filter out that entry from the list of entries before finding the second highest probability (secondMax)
-          val secondMax = it.filterNot { entry -> entry == max }.maxByOrNull { entry -> entry.value }
-          updateTextView(secondMax,mBinding.text2,timeInMillis)
+      if (mBinding?.progressHorizontal?.isIndeterminate != false){  //if start/stop button set to "running"
+        val timeInMillis = System.currentTimeMillis()
+        for (pipeline in pipelines) {
+          // The checkbox of the main screen switches configuration A while running
+          val ignoreMeta = if (pipeline.primary) sharedPref.getBoolean("main_ignore_meta", false) else pipeline.config.ignoreMeta
+          if (ignoreMeta) pipeline.score(allSpecies, null)
+          else pipeline.score(activeSpecies, metaPredictionProbs)
+          val max = if (pipeline.first >= 0) IndexedValue(pipeline.first, pipeline.firstProb) else null
+          val secondMax = if (pipeline.second >= 0) IndexedValue(pipeline.second, pipeline.secondProb) else null
+          if (pipeline.primary) {
+            updateTextView(max, true, timeInMillis, pipeline.firstStore, pipeline)
+            updateImage(max)
+            updateTextView(secondMax, false, timeInMillis, pipeline.secondStore, pipeline)
+          } else {
+            // Further configurations are only stored
+            if (max != null && pipeline.firstStore) detection(max, timeInMillis, pipeline).let { Handler(Looper.getMainLooper()).post { it() } }
+            if (secondMax != null && pipeline.secondStore) detection(secondMax, timeInMillis, pipeline).let { Handler(Looper.getMainLooper()).post { it() } }
+          }
         }
       }
 
@@ -548,12 +983,14 @@ class SoundClassifier(
   }
 
   private fun updateImage(max: IndexedValue<Float>?) {
-    if (mBinding.checkShowImages.isChecked) {
+    val sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext)
+    if (sharedPref.getBoolean("main_show_images", false)) {
       Handler(Looper.getMainLooper()).post {
+        val mBinding = mBinding ?: return@post
 
         val url =
-          if (max!!.value > options.displayImageThreshold && assetList[max.index] != "NO_ASSET") {
-            "https://macaulaylibrary.org/asset/" + assetList[max.index] + "/embed"
+          if (max != null && max.value > options.displayImageThreshold && species.hasAsset(max.index)) {
+            species.getAssetUrl(max.index)
           } else {
             mBinding.webview.url
           }
@@ -576,8 +1013,8 @@ class SoundClassifier(
             mBinding.webview.loadUrl(url)
             mBinding.webviewUrl.setText(url)
             mBinding.webviewUrl.setVisibility(View.VISIBLE)
-            mBinding.webviewName.setText(labelList[max.index].split("_").last())
-            mBinding.webviewLatinname.setText(labelList[max.index].split("_").first())
+            mBinding.webviewName.setText(species.getCommonName(max!!.index))
+            mBinding.webviewLatinname.setText(species.getScientificName(max.index))
             mBinding.webviewLatinname.setVisibility(View.VISIBLE)
             mBinding.webviewName.setVisibility(View.VISIBLE)
             mBinding.webviewReload.setVisibility(View.VISIBLE)
@@ -587,6 +1024,7 @@ class SoundClassifier(
       }
     } else {
       Handler(Looper.getMainLooper()).post {
+        val mBinding = mBinding ?: return@post
         mBinding.webview.setVisibility(View.GONE)
         mBinding.icon.setVisibility(View.VISIBLE)
         mBinding.webview.loadUrl("about:blank")
@@ -601,42 +1039,285 @@ class SoundClassifier(
     }
   }
 
-  private fun updateTextView(element: IndexedValue<Float>?, tv: TextView, timeInMillis: Long) {
-    val sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext)
-    if (element != null && element.value > sharedPref.getInt("model_threshold", 30)/100.0) {
-      val label =
-        labelList[element.index].split("_").last()  //show in locale language
+  /**
+   * Show a result above its threshold in the first or second text view, clear it if null. The result is stored as
+   * detection if store is set, i.e. unless it is a smoothed detection which already started in an earlier window.
+   */
+  private fun updateTextView(element: IndexedValue<Float>?, first: Boolean, timeInMillis: Long, store: Boolean, pipeline: Pipeline) {
+    if (element != null) {
+      val label = species.getCommonName(element.index)  //show in locale language
+      val storeDetection = if (store) detection(element, timeInMillis, pipeline) else null
       Handler(Looper.getMainLooper()).post {
-        tv.setText(label + "  " + Math.round(element.value * 100.0) + "%")
-        if (element.value < 0.3) tv.setBackgroundResource(R.drawable.oval_holo_red_dark_dotted)
-        else if (element.value < 0.5) tv.setBackgroundResource(R.drawable.oval_holo_red_dark)
-        else if (element.value < 0.65) tv.setBackgroundResource(R.drawable.oval_holo_orange_dark)
-        else if (element.value < 0.8) tv.setBackgroundResource(R.drawable.oval_holo_orange_light)
-        else tv.setBackgroundResource(R.drawable.oval_holo_green_light)
-        database?.addEntry(label, lat, lon, element.index, element.value, timeInMillis)
-        if (sharedPref.getBoolean("write_wav",false)) WavUtils.createWaveFile(timeInMillis, wavWriterBuffer, options.sampleRate,1,2)
-        if (sharedPref.getBoolean("play_sound",false)) PlayNotification.playSound(mContext);
+        val tv = if (first) mBinding?.text1 else mBinding?.text2
+        if (tv != null) {
+          tv.setText(label + "  " + Math.round(element.value * 100.0) + "%")
+          if (element.value < 0.3) tv.setBackgroundResource(R.drawable.oval_holo_red_dark_dotted)
+          else if (element.value < 0.5) tv.setBackgroundResource(R.drawable.oval_holo_red_dark)
+          else if (element.value < 0.65) tv.setBackgroundResource(R.drawable.oval_holo_orange_dark)
+          else if (element.value < 0.8) tv.setBackgroundResource(R.drawable.oval_holo_orange_light)
+          else tv.setBackgroundResource(R.drawable.oval_holo_green_light)
+        }
+        storeDetection?.invoke()
       }
     } else {
       Handler(Looper.getMainLooper()).post {
-        tv.setText("")
-        tv.setBackgroundResource(0)
+        val tv = if (first) mBinding?.text1 else mBinding?.text2
+        tv?.setText("")
+        tv?.setBackgroundResource(0)
+      }
+    }
+  }
+
+  /**
+   * Take what is stored with a detection from the buffers of its pipeline, call on the classification thread.
+   * Returns the function which stores it, call it on the main thread. WAV file and sound only follow the primary
+   * configuration, the files are named by time.
+   */
+  private fun detection(element: IndexedValue<Float>, timeInMillis: Long, pipeline: Pipeline): () -> Unit {
+    val label = species.getCommonName(element.index)
+    val logits = TopLogits.pack(pipeline.group.logits, element.index)  //raw model output, allows re-scoring later
+    val embedding = pipeline.group.embedding
+    val embeddingBlob = if (storeEmbeddings && embedding.isNotEmpty()) EmbeddingIndex.quantize(embedding) else null
+    val version = modelVersion
+    val config = pipeline.config.name
+    // Fused probabilities cannot be recomputed from the stored main model logits, the rescorer skips them
+    val scoring = pipeline.scoring or (if (pipeline.group.fused) BirdDBHelper.SCORING_ENSEMBLE else 0)
+    val wav = if (pipeline.primary) pipeline.group.input.duplicate() else null
+    return {
+      val sharedPref = PreferenceManager.getDefaultSharedPreferences(mContext)
+      database?.addEntry(label, lat, lon, element.index, element.value, timeInMillis, logits, embeddingBlob, version, config, scoring)
+      if (wav != null) {
+        if (sharedPref.getBoolean("write_wav",false)) WavUtils.createWaveFile(timeInMillis, wav, options.sampleRate,1,2)
+        if (sharedPref.getBoolean("play_sound",false)) PlayNotification.playSound(mContext);
       }
     }
   }
 
-  private fun String.toTitleCase() =
-    splitToSequence("_")
-      .map { it.replaceFirstChar { if (it.isLowerCase()) it.titlecase(Locale.ROOT) else it.toString() } }
-      .joinToString("_")
-      .trim()
+  /**
+   * Run the regional model on the latest inputLength samples of a model input and copy its output to logits.
+   * @return inference time in nanoseconds, -1 if the model was replaced or released in the meantime
+   */
+  private fun runEnsembleMember(member: EnsembleMember, inputBuffer: FloatBuffer, logits: FloatArray): Long = synchronized(ensembleLock) {
+    if (ensembleMember !== member) return -1L
+    val t0 = SystemClock.elapsedRealtimeNanos()
+    val input = inputBuffer.duplicate()
+    input.position(modelInputLength - member.model.inputLength)
+    member.output.rewind()
+    member.model.interpreter.run(input.slice(), member.output)
+    member.output.rewind()
+    member.output.get(logits)
+    SystemClock.elapsedRealtimeNanos() - t0
+  }
+
+  /** The regional model of ensemble mode with its class map and output buffer */
+  private class EnsembleMember(val model: AudioModel, val classMap: RegionalModel) {
+    val output: FloatBuffer = FloatBuffer.allocate(model.numClasses)
+  }
+
+  /**
+   * Model input and output of the configurations with the same high-pass filter. The audio model runs once per group
+   * and window, the configurations of a group only differ in scoring.
+   */
+  private class InputGroup(val highPass: Int, inputLength: Int, numClasses: Int) {
+    private val butterworth = if (highPass > 0) Butterworth().also { it.highPass(6, 48000.0, highPass.toDouble()) } else null
+    val input: FloatBuffer = FloatBuffer.allocate(inputLength)
+    private val output: FloatBuffer = FloatBuffer.allocate(numClasses)
+    /** Raw model output of the latest window, stored with detections */
+    val logits = FloatArray(numClasses)
+    /** Logits the pipelines score, a copy of logits fused with the regional model in ensemble mode */
+    val scores = FloatArray(numClasses)
+    /** The regional model was fused into scores in the latest window */
+    var fused = false
+    var embedding = FloatArray(0)
+    /** Output and pending inference of the regional model in ensemble mode */
+    var regionalLogits = FloatArray(0)
+    var regionalResult: Future<Long>? = null
+
+    /** Copy the window ending before position end of the circular buffer to the input, filtered */
+    fun fill(circularBuffer: ShortArray, end: Int) {
+      val length = circularBuffer.size
+      for (i in 0 until length) {
+        val s = circularBuffer[(i + end) % length]
+        if (butterworth == null) input.put(i, s.toFloat())
+        else input.put(i, butterworth.filter(s.toDouble()).toFloat())
+      }
+    }
+
+    /** Run the model on the input, call while holding modelLock */
+    fun run(audioModel: AudioModel, withEmbedding: Boolean) {
+      input.rewind()
+      output.rewind()
+      if (withEmbedding && audioModel.embeddingLength > 0) {
+        audioModel.embeddingBuffer.rewind()
+        audioModel.interpreter.runForMultipleInputsOutputs(arrayOf<Any>(input), mapOf<Int, Any>(0 to output, 1 to audioModel.embeddingBuffer))
+        audioModel.embeddingBuffer.rewind()
+        if (embedding.size != audioModel.embeddingLength) embedding = FloatArray(audioModel.embeddingLength)
+        audioModel.embeddingBuffer.get(embedding)
+      } else {
+        audioModel.interpreter.run(input, output)
+      }
+      output.rewind()
+      output.get(logits)
+    }
+  }
+
+  /** Scoring of one configuration with its thresholds and smoothing state, the highest two results of a window */
+  private class Pipeline(
+    val config: ClassificationConfig,
+    val group: InputGroup,
+    private val thresholds: FloatArray,
+    private val smoother: DetectionSmoother?,
+    /** Shown in the main activity, the other configurations are only stored */
+    val primary: Boolean
+  ) {
+    var first = -1
+    var firstProb = 0f
+    var firstStore = true
+    var second = -1
+    var secondProb = 0f
+    var secondStore = true
+    /** BirdDBHelper.SCORING_ flags of the latest window */
+    var scoring = 0
+
+    /**
+     * Highest and second highest probability at or above the species' threshold, only the given species (those active at
+     * this location and date) can score, weighted by metaWeights if set. With smoothing the smoothed scores of
+     * detected species are ranked, and a species is stored the first time it is among the two after it was switched on.
+     */
+    fun score(active: IntArray, metaWeights: FloatArray?) {
+      smoother?.setSpecies(active)
+      scoring = (if (metaWeights == null) BirdDBHelper.SCORING_NO_META else 0) or
+              (if (smoother != null) BirdDBHelper.SCORING_SMOOTHED else 0)
+      first = -1
+      firstProb = 0f
+      firstStore = true
+      second = -1
+      secondProb = 0f
+      secondStore = true
+      val logits = group.scores
+      var firstK = -1
+      var secondK = -1
+      for (k in active.indices) {
+        val i = active[k]
+        val weight = if (metaWeights != null) metaWeights[i] else 1f
+        var prob = weight / (1 + kotlin.math.exp(-logits[i]))  //apply sigmoid
+        var store = true
+        if (smoother != null) {
+          prob = smoother.update(k, prob, thresholds[i])
+          if (!smoother.isOn(k)) continue
+          store = smoother.isPending(k)
+        } else if (prob < thresholds[i]) continue
+        if (first < 0 || prob > firstProb) {
+          second = first
+          secondProb = firstProb
+          secondStore = firstStore
+          secondK = firstK
+          first = i
+          firstProb = prob
+          firstStore = store
+          firstK = k
+        } else if (second < 0 || prob > secondProb) {
+          second = i
+          secondProb = prob
+          secondStore = store
+          secondK = k
+        }
+      }
+      if (smoother != null) {
+        if (firstK >= 0 && firstStore) smoother.stored(firstK)
+        if (secondK >= 0 && secondStore) smoother.stored(secondK)
+        smoother.endWindow()
+      }
+    }
+  }
+
+  /** An audio model interpreter with its tensor sizes and embedding output buffers */
+  private class AudioModel(val interpreter: Interpreter, val version: String) {
+    val inputLength = interpreter.getInputTensor(0).shape()[1]
+    val numClasses = interpreter.getOutputTensor(0).shape()[1]
+    // Optional second output with the feature embedding
+    val embeddingLength = if (interpreter.outputTensorCount > 1) interpreter.getOutputTensor(1).shape()[1] else 0
+    val embeddingBuffer: FloatBuffer = FloatBuffer.allocate(embeddingLength)
+  }
 
   companion object {
     private const val TAG = "SoundClassifier"
+    /** Tiers of release()  */
+    private const val RELEASE_BUFFERS = 1
+    private const val RELEASE_MODELS = 2
+    /** Ensemble latencies are logged as mean over this many windows, about a minute  */
+    private const val LATENCY_LOG_WINDOWS = 75
+    private val EXTERNAL_INPUTS = intArrayOf(AudioDeviceInfo.TYPE_USB_DEVICE, AudioDeviceInfo.TYPE_USB_HEADSET, AudioDeviceInfo.TYPE_WIRED_HEADSET)
+    /** Interpreters are released when classification was stopped for this long  */
+    private const val PAUSE_RELEASE_MILLIS = 60_000L
+    @Volatile
+    private var instance: SoundClassifier? = null
+
+    /** Reload the model files if the classifier exists, see reloadModels() */
+    @JvmStatic
+    fun reloadIfRunning() {
+      instance?.reloadModels()
+    }
+
+    /** Load the regional model again if the classifier exists, after it was installed or ensemble mode was switched */
+    @JvmStatic
+    fun ensembleChanged() {
+      instance?.reloadEnsemble()
+    }
+
+    /** Map the range table again and re-apply the weights of the latest location, call on the main thread */
+    @JvmStatic
+    fun rangeTableChanged() {
+      val classifier = instance ?: return
+      classifier.rangeTable = null
+      classifier.lastLocation?.let { classifier.runMetaInterpreter(it) }
+    }
+
+    /** The process-wide classifier, created and initialized on first use */
+    @JvmStatic
+    fun getInstance(context: Context): SoundClassifier =
+      instance ?: synchronized(this) {
+        instance ?: SoundClassifier(context, Options()).also { instance = it }
+      }
+
     var lat: Float = 0.0f
     var lon: Float = 0.0f
     /** Number of nanoseconds in a millisecond  */
     private const val NANOS_IN_MILLIS = 1_000_000.toDouble()
+
+    /** Memory-map a model file from the private files directory */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun mapModelFile(context: Context, path: String): ByteBuffer {
+      val modelFilePath = context.getDir("filesdir", Context.MODE_PRIVATE).absolutePath + "/" + path
+      Log.i(TAG, "Trying to create TFLite buffer from $modelFilePath")
+      val modelFile = File(modelFilePath)
+      val tfliteBuffer: ByteBuffer = FileChannel.open(modelFile.toPath(), StandardOpenOption.READ).use { channel ->
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+      }
+      Log.i(TAG, "Done creating TFLite buffer from $modelFilePath")
+      return tfliteBuffer
+    }
+
+    /** Week of the meta model, the model year has 48 weeks */
+    fun modelWeek(dayOfYear: Int): Double = ceil(dayOfYear * 48.0 / 366.0)
+
+    /** Week input of the meta model */
+    @JvmStatic
+    fun metaWeekInput(week: Double): Float = (cos(Math.toRadians(week * 7.5)) + 1.0).toFloat()
+
+    /** Quantize the meta model output to the weight applied to the audio model probability */
+    @JvmStatic
+    fun metaWeight(metaProbability: Float, options: Options): Float =
+      if (metaProbability >= options.metaProbabilityThreshold1) {
+        1f
+      } else if (metaProbability >= options.metaProbabilityThreshold2) {
+        0.8f
+      } else if (metaProbability >= options.metaProbabilityThreshold3) {
+        0.5f
+      } else {
+        0f
+      }
   }
 }
 
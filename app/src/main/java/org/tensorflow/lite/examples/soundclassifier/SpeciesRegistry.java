@@ -0,0 +1,174 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide table of the model's species: common and scientific names, Macaulay Library asset IDs and eBird codes.
+ * <p>
+ * Reads species.bin, generated at build time from src/main/species by the generateSpeciesBundle task. The bundle is
+ * stored uncompressed and memory-mapped, names are decoded on lookup, so loading parses nothing and a locale change
+ * only selects another common name section.
+ */
+public class SpeciesRegistry {
+    private static final String TAG = "SpeciesRegistry";
+    private static final String BUNDLE_FILE = "species.bin";
+    private static final int MAGIC = 0x31425053;  // "SPB1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 7 * 4;
+    private static final int LOCALE_ENTRY_SIZE = 12;
+    private static final String DEFAULT_LOCALE = "en";
+    private static final long NO_ASSET = 0L;
+    // eBird codes are up to 10 characters of a-z, 0-9 and '-', packed in base 38 (0 = end of code)
+    private static final String EBIRD_ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789-";
+    private static final int EBIRD_RADIX = EBIRD_ALPHABET.length() + 1;
+
+    private static SpeciesRegistry instance = null;
+
+    private final MappedByteBuffer bundle;
+    private final int count;
+    private final int assetIdsOffset;
+    private final int eBirdOffset;
+    private final int scientificOffset;
+    private final Map<String, Integer> commonOffsets = new HashMap<>();
+    private String locale;
+    private int commonOffset;
+    private Map<String, Integer> ids;
+
+    private SpeciesRegistry(Context context) {
+        try (AssetFileDescriptor fd = context.getAssets().openFd(BUNDLE_FILE);
+             FileInputStream stream = fd.createInputStream()) {
+            bundle = stream.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getDeclaredLength());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map " + BUNDLE_FILE, e);
+        }
+        bundle.order(ByteOrder.LITTLE_ENDIAN);
+        if (bundle.getInt(0) != MAGIC || bundle.getInt(4) != VERSION) {
+            throw new IllegalStateException("Unsupported " + BUNDLE_FILE);
+        }
+        count = bundle.getInt(8);
+        int localeCount = bundle.getInt(12);
+        assetIdsOffset = bundle.getInt(16);
+        eBirdOffset = bundle.getInt(20);
+        scientificOffset = bundle.getInt(24);
+        byte[] name = new byte[8];
+        for (int i = 0; i < localeCount; i++) {
+            int entry = HEADER_SIZE + i * LOCALE_ENTRY_SIZE;
+            int length = 0;
+            while (length < name.length && bundle.get(entry + length) != 0) {
+                name[length] = bundle.get(entry + length);
+                length++;
+            }
+            commonOffsets.put(new String(name, 0, length, StandardCharsets.US_ASCII), bundle.getInt(entry + 8));
+        }
+        selectLocale(context);
+        Log.i(TAG, "Species: " + count + ", locales: " + localeCount + ", common names " + locale);
+    }
+
+    /** The registry, loaded on first use. Re-resolves the common names if the locale changed since the last call. */
+    public static synchronized SpeciesRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new SpeciesRegistry(context.getApplicationContext());
+        } else {
+            instance.selectLocale(context);
+        }
+        return instance;
+    }
+
+    /** Select the common names for the current locale, falls back to English */
+    private synchronized void selectLocale(Context context) {
+        Locale current = context.getResources().getConfiguration().getLocales().get(0);
+        String language = current.getLanguage();
+        if (language.equals("en")) {
+            language = current.getCountry().equals("GB") ? "en_uk" : "en";
+        } else if (language.equals("pt")) {
+            language = current.getCountry().equals("BR") ? "pt_BR" : "pt_PT";
+        }
+        if (!commonOffsets.containsKey(language)) language = DEFAULT_LOCALE;
+        if (language.equals(locale)) return;
+        if (locale != null) Log.i(TAG, "Common names switched to " + language);
+        locale = language;
+        commonOffset = commonOffsets.get(language);
+    }
+
+    /** Name from the section at offset, which holds int[count + 1] byte offsets followed by the UTF-8 names */
+    private String getName(int offset, int id) {
+        int start = bundle.getInt(offset + 4 * id);
+        int end = bundle.getInt(offset + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        int base = offset + 4 * (count + 1) + start;
+        for (int i = 0; i < bytes.length; i++) bytes[i] = bundle.get(base + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String unpackEBirdCode(long packed) {
+        StringBuilder code = new StringBuilder(10);
+        while (packed != 0) {
+            code.append(EBIRD_ALPHABET.charAt((int) (packed % EBIRD_RADIX) - 1));
+            packed /= EBIRD_RADIX;
+        }
+        return code.toString();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** Common name in the current locale */
+    public synchronized String getCommonName(int id) {
+        return getName(commonOffset, id);
+    }
+
+    public String getScientificName(int id) {
+        return getName(scientificOffset, id);
+    }
+
+    /** Macaulay Library asset ID, 0 if there is no asset for this species */
+    public long getAssetId(int id) {
+        return id < count ? bundle.getLong(assetIdsOffset + 8 * id) : NO_ASSET;
+    }
+
+    public boolean hasAsset(int id) {
+        return getAssetId(id) != NO_ASSET;
+    }
+
+    /** URL of the embeddable Macaulay Library asset, null if there is none */
+    public String getAssetUrl(int id) {
+        return hasAsset(id) ? "https://macaulaylibrary.org/asset/" + getAssetId(id) + "/embed" : null;
+    }
+
+    public String getEBirdCode(int id) {
+        return id < count ? unpackEBirdCode(bundle.getLong(eBirdOffset + 8 * id)) : "";
+    }
+
+    /**
+     * ID of a species by eBird code or scientific name, ignoring case. A BirdNET label "Scientific name_Common name"
+     * is matched by its scientific name.
+     * @return the ID, -1 if no species matches
+     */
+    public synchronized int findSpecies(String key) {
+        if (ids == null) {
+            ids = new HashMap<>(2 * count);
+            for (int i = 0; i < count; i++) {
+                ids.put(getScientificName(i).toLowerCase(Locale.ROOT), i);
+                String code = getEBirdCode(i);
+                if (!code.isEmpty()) ids.put(code, i);
+            }
+        }
+        int separator = key.indexOf('_');
+        if (separator > 0) key = key.substring(0, separator);
+        Integer id = ids.get(key.trim().toLowerCase(Locale.ROOT));
+        return id != null ? id : -1;
+    }
+}
@@ -0,0 +1,175 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Calibrated detection thresholds per species, aligned with the class indices of the model. Species without an own
+ * threshold (NaN) use the global model_threshold.
+ * <p>
+ * thresholds.bin, little-endian: magic "THR1", class count, then one float per class. The table is imported from a
+ * CSV file with one species per line: index, eBird code or scientific name, then the threshold as fraction or
+ * percent. An import replaces the previous table.
+ */
+@SuppressWarnings("ResultOfMethodCallIgnored")
+public class SpeciesThresholds {
+    private static final String TAG = "SpeciesThresholds";
+    public static final String FILE = "thresholds.bin";
+    private static final int MAGIC = 0x31524854;  // "THR1"
+    private static final int HEADER_SIZE = 8;
+
+    private static SpeciesThresholds instance = null;
+
+    private final File file;
+    private float[] thresholds = new float[0];
+
+    private SpeciesThresholds(Context context) {
+        file = new File(context.getDir("filesdir", Context.MODE_PRIVATE), FILE);
+        if (file.exists()) read();
+    }
+
+    public static synchronized SpeciesThresholds getInstance(Context context) {
+        if (instance == null) instance = new SpeciesThresholds(context.getApplicationContext());
+        return instance;
+    }
+
+    /** Thresholds of all species for the current model_threshold preference */
+    public static float[] current(Context context) {
+        float global = PreferenceManager.getDefaultSharedPreferences(context).getInt("model_threshold", 30) / 100f;
+        return getInstance(context).resolve(global, SpeciesRegistry.getInstance(context).size());
+    }
+
+    /** Thresholds of numClasses species, the global threshold where a species has none */
+    public synchronized float[] resolve(float global, int numClasses) {
+        float[] resolved = new float[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            resolved[i] = i < thresholds.length && !Float.isNaN(thresholds[i]) ? thresholds[i] : global;
+        }
+        return resolved;
+    }
+
+    /** Lowest threshold of a resolved table, detections below it pass no threshold */
+    public static float minimum(float[] resolved) {
+        float min = 1f;
+        for (float threshold : resolved) min = Math.min(min, threshold);
+        return min;
+    }
+
+    /** Whether a detection passes the threshold of its species in a resolved table */
+    public static boolean passes(float[] resolved, int speciesId, float probability) {
+        float threshold = speciesId >= 0 && speciesId < resolved.length ? resolved[speciesId] : minimum(resolved);
+        return probability >= threshold;
+    }
+
+    /** Number of species with an own threshold */
+    public synchronized int count() {
+        int count = 0;
+        for (float threshold : thresholds) if (!Float.isNaN(threshold)) count++;
+        return count;
+    }
+
+    /**
+     * Import thresholds from CSV, separated by comma, semicolon or tab. Lines which start with # and lines without
+     * a known species or a threshold between 0 and 1 (or 0 and 100 percent) are skipped, e.g. a header.
+     * @return number of species with an own threshold
+     */
+    public synchronized int importCsv(InputStream csv, SpeciesRegistry species) throws IOException {
+        int numClasses = species.size();
+        float[] imported = new float[numClasses];
+        Arrays.fill(imported, Float.NaN);
+        int skipped = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(csv, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split("[,;\t]");
+            int id = fields.length >= 2 ? speciesId(fields[0].trim().replace("\"", ""), species) : -1;
+            float threshold = fields.length >= 2 ? parseThreshold(fields[fields.length - 1].trim().replace("\"", "")) : Float.NaN;
+            if (id < 0 || Float.isNaN(threshold)) {
+                skipped++;
+                continue;
+            }
+            imported[id] = threshold;
+        }
+        write(imported);
+        thresholds = imported;
+        int count = count();
+        Log.i(TAG, "Imported thresholds of " + count + " species, skipped " + skipped + " lines");
+        return count;
+    }
+
+    /** Remove all thresholds, every species uses the global threshold again */
+    public synchronized void clear() {
+        thresholds = new float[0];
+        file.delete();
+    }
+
+    private static int speciesId(String key, SpeciesRegistry species) {
+        try {
+            int id = Integer.parseInt(key);
+            return id >= 0 && id < species.size() ? id : -1;
+        } catch (NumberFormatException e) {
+            return species.findSpecies(key);
+        }
+    }
+
+    /** Threshold as fraction, NaN if the value is no number or out of range */
+    private static float parseThreshold(String value) {
+        float threshold;
+        try {
+            threshold = Float.parseFloat(value.endsWith("%") ? value.substring(0, value.length() - 1) : value);
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+        if (value.endsWith("%") || threshold > 1f) threshold /= 100f;
+        return threshold >= 0f && threshold <= 1f ? threshold : Float.NaN;
+    }
+
+    private void read() {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] data = new byte[(int) file.length()];
+            in.readFully(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            if (data.length < HEADER_SIZE || buffer.getInt() != MAGIC) throw new IOException("Unsupported " + FILE);
+            int count = buffer.getInt();
+            if (data.length != HEADER_SIZE + 4 * count) throw new IOException("Unexpected size " + data.length);
+            float[] loaded = new float[count];
+            buffer.asFloatBuffer().get(loaded);
+            thresholds = loaded;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping " + FILE + ": " + e.getMessage());
+            file.delete();
+        }
+    }
+
+    private void write(float[] table) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * table.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(table.length);
+        buffer.asFloatBuffer().put(table);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(buffer.array());
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp.getName());
+        }
+    }
+}
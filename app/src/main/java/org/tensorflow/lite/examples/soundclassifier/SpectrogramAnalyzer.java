@@ -0,0 +1,93 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a {@link SpectrogramView} from the capture stream.
+ * <p>
+ * Each column is the average of FRAMES_PER_COLUMN non-overlapping FFT frames. Audio arrives in bursts of one
+ * inference interval, so columns are paced to real time while running to keep the view scrolling smoothly.
+ * The processing time per column is measured and shown as share of real time.
+ */
+public class SpectrogramAnalyzer extends AudioConsumer {
+    public static final String TAG = "SpectrogramAnalyzer";
+    private static final int FFT_SIZE = 512;
+    private static final int FRAMES_PER_COLUMN = 4;
+    private static final long DRAIN_INTERVAL_NANOS = 50_000_000L;
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+    private final SpectrogramView view;
+    private final Fft fft = new Fft(FFT_SIZE);
+    private final short[] frame = new short[FFT_SIZE];
+    private final float[] power = new float[FFT_SIZE / 2];
+    private final float[] powerSum = new float[FFT_SIZE / 2];
+    private final float[] db = new float[FFT_SIZE / 2];
+    private final long columnNanos;
+
+    private int frameFill;
+    private int frameCount;
+    private long busyNanos;
+    private int columns;
+    private long reportMillis;
+
+    public SpectrogramAnalyzer(int sampleRate, SpectrogramView view) {
+        super(TAG, sampleRate * 2, FFT_SIZE, DRAIN_INTERVAL_NANOS);
+        this.view = view;
+        this.columnNanos = 1_000_000_000L * FFT_SIZE * FRAMES_PER_COLUMN / sampleRate;
+        view.setBins(fft.bins());
+    }
+
+    @Override
+    protected void onStart() {
+        frameFill = 0;
+        frameCount = 0;
+        busyNanos = 0;
+        columns = 0;
+        reportMillis = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    protected void process(short[] samples, int count) {
+        int offset = 0;
+        while (offset < count) {
+            int chunk = Math.min(count - offset, FFT_SIZE - frameFill);
+            System.arraycopy(samples, offset, frame, frameFill, chunk);
+            frameFill += chunk;
+            offset += chunk;
+            if (frameFill < FFT_SIZE) break;
+            frameFill = 0;
+            long t0 = System.nanoTime();
+            fft.powerSpectrum(frame, 0, power);
+            for (int i = 0; i < power.length; i++) powerSum[i] += power[i];
+            if (++frameCount == FRAMES_PER_COLUMN) {
+                for (int i = 0; i < db.length; i++) {
+                    db[i] = (float) (10 * Math.log10(powerSum[i] / FRAMES_PER_COLUMN + 1e-20f));
+                    powerSum[i] = 0f;
+                }
+                frameCount = 0;
+                view.addColumn(db);
+                columns++;
+                busyNanos += System.nanoTime() - t0;
+                report();
+                if (isRunning()) LockSupport.parkNanos(columnNanos * 9 / 10);
+            } else {
+                busyNanos += System.nanoTime() - t0;
+            }
+        }
+    }
+
+    private void report() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - reportMillis < REPORT_INTERVAL_MILLIS) return;
+        float load = 100f * busyNanos / (columns * (float) columnNanos);
+        Log.d(TAG, "Spectrogram: " + busyNanos / columns / 1000 + " us per column, " + load + "% of real time");
+        view.setLoad(String.format(Locale.ROOT, "%.2f%%", load));
+        busyNanos = 0;
+        columns = 0;
+        reportMillis = now;
+    }
+}
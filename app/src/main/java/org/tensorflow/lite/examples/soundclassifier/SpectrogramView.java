@@ -0,0 +1,116 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+
+/**
+ * Scrolling live spectrogram.
+ * <p>
+ * Columns are written into a ring bitmap one at a time from the analysis thread, the bitmap is never redrawn as a whole.
+ * onDraw shows the ring in two parts, oldest column on the left.
+ */
+public class SpectrogramView extends View {
+    private static final int COLUMNS = 256;
+
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint linePaint = new Paint();
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect src = new Rect();
+    private final Rect dst = new Rect();
+    private final int[] palette;
+
+    private Bitmap bitmap;
+    private int[] column;
+    private int writeColumn = 0;
+    private float dbFloor = -100f;
+    private float dbCeiling = -20f;
+    private float highPassFraction = 0f;  // high pass cutoff relative to the highest frequency
+    private volatile String load = "";
+
+    public SpectrogramView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        palette = LtsaFile.palette(
+                ContextCompat.getColor(context, R.color.dark_blue_gray700),
+                ContextCompat.getColor(context, R.color.orange500),
+                ContextCompat.getColor(context, android.R.color.white));
+        float density = getResources().getDisplayMetrics().density;
+        linePaint.setColor(ContextCompat.getColor(context, R.color.gray400));
+        linePaint.setStrokeWidth(density);
+        textPaint.setColor(ContextCompat.getColor(context, R.color.gray400));
+        textPaint.setTextSize(10 * density);
+    }
+
+    /** Set the number of frequency bins, clears the spectrogram */
+    public synchronized void setBins(int bins) {
+        if (bitmap != null && bitmap.getHeight() == bins) return;
+        bitmap = Bitmap.createBitmap(COLUMNS, bins, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(palette[0]);
+        column = new int[bins];
+        writeColumn = 0;
+    }
+
+    public void setRange(float dbFloor, float dbCeiling) {
+        this.dbFloor = dbFloor;
+        this.dbCeiling = dbCeiling;
+    }
+
+    /** Marks the high pass cutoff, 0 hides the line */
+    public void setHighPass(float highPassFraction) {
+        this.highPassFraction = highPassFraction;
+        postInvalidate();
+    }
+
+    /** Processing load shown in the corner */
+    public void setLoad(String load) {
+        this.load = load;
+    }
+
+    /**
+     * Append one column, called from the analysis thread.
+     * @param db level per bin, lowest frequency first
+     */
+    public void addColumn(float[] db) {
+        synchronized (this) {
+            if (bitmap == null) return;
+            int bins = column.length;
+            float scale = (palette.length - 1) / (dbCeiling - dbFloor);
+            for (int b = 0; b < bins; b++) {
+                int index = (int) ((db[b] - dbFloor) * scale);
+                column[bins - 1 - b] = palette[Math.max(0, Math.min(palette.length - 1, index))];
+            }
+            bitmap.setPixels(column, 0, 1, writeColumn, 0, 1, bins);
+            writeColumn = (writeColumn + 1) % COLUMNS;
+        }
+        postInvalidateOnAnimation();
+    }
+
+    @Override
+    protected synchronized void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (bitmap == null) return;
+        int width = getWidth();
+        int height = getHeight();
+        int split = Math.round((COLUMNS - writeColumn) * width / (float) COLUMNS);
+        // oldest part [writeColumn, COLUMNS) on the left, newest part [0, writeColumn) on the right
+        src.set(writeColumn, 0, COLUMNS, bitmap.getHeight());
+        dst.set(0, 0, split, height);
+        canvas.drawBitmap(bitmap, src, dst, bitmapPaint);
+        if (writeColumn > 0) {
+            src.set(0, 0, writeColumn, bitmap.getHeight());
+            dst.set(split, 0, width, height);
+            canvas.drawBitmap(bitmap, src, dst, bitmapPaint);
+        }
+        if (highPassFraction > 0f) {
+            float y = height * (1f - highPassFraction);
+            canvas.drawLine(0, y, width, y, linePaint);
+        }
+        canvas.drawText(load, textPaint.getTextSize() / 2, textPaint.getTextSize(), textPaint);
+    }
+}
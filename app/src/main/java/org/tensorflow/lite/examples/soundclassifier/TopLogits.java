@@ -0,0 +1,71 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compact top-K list of raw model outputs (logits) stored with each detection,
+ * packed as little-endian (short class ID, float logit) pairs.
+ * Keeping the logits allows to re-apply sigmoid, meta weighting and thresholds later without re-analyzing audio.
+ */
+public class TopLogits {
+    public static final int K = 5;
+    private static final int ENTRY_SIZE = 6;
+
+    /** Pack the K largest logits, the class include is always part of the list. */
+    public static byte[] pack(float[] logits, int include) {
+        int[] ids = new int[K];
+        float[] values = new float[K];
+        int n = 0;
+        for (int i = 0; i < logits.length; i++) {
+            float v = logits[i];
+            if (n == K && v <= values[K - 1]) continue;
+            int pos = (n < K) ? n++ : K - 1;
+            // insertion into the sorted list
+            while (pos > 0 && values[pos - 1] < v) {
+                values[pos] = values[pos - 1];
+                ids[pos] = ids[pos - 1];
+                pos--;
+            }
+            values[pos] = v;
+            ids[pos] = i;
+        }
+        boolean included = false;
+        for (int i = 0; i < n; i++) if (ids[i] == include) included = true;
+        if (!included && include >= 0 && include < logits.length) {
+            if (n < K) n++;
+            ids[n - 1] = include;
+            values[n - 1] = logits[include];
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(n * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < n; i++) {
+            buffer.putShort((short) ids[i]);
+            buffer.putFloat(values[i]);
+        }
+        return buffer.array();
+    }
+
+    public static int size(byte[] packed) {
+        return packed == null ? 0 : packed.length / ENTRY_SIZE;
+    }
+
+    public static int classIdAt(byte[] packed, int i) {
+        int offset = i * ENTRY_SIZE;
+        return (packed[offset] & 0xFF) | (packed[offset + 1] & 0xFF) << 8;
+    }
+
+    public static float logitAt(byte[] packed, int i) {
+        int offset = i * ENTRY_SIZE + 2;
+        int bits = (packed[offset] & 0xFF) | (packed[offset + 1] & 0xFF) << 8 | (packed[offset + 2] & 0xFF) << 16 | (packed[offset + 3] & 0xFF) << 24;
+        return Float.intBitsToFloat(bits);
+    }
+
+    /** Logit of the given class, NaN if it is not part of the list */
+    public static float logitOf(byte[] packed, int classId) {
+        for (int i = 0; i < size(packed); i++) {
+            if (classIdAt(packed, i) == classId) return logitAt(packed, i);
+        }
+        return Float.NaN;
+    }
+}
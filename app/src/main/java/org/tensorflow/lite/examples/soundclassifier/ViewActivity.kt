@@ -6,6 +6,8 @@ import android.net.Uri
 import android.os.Build
 import android.os.Bundle
 import android.os.Environment
+import android.os.Handler
+import android.os.Looper
 import android.text.format.DateFormat
 import android.util.DisplayMetrics
 import android.util.Log
@@ -23,10 +25,7 @@ import androidx.preference.PreferenceManager
 import androidx.recyclerview.widget.LinearLayoutManager
 import net.lingala.zip4j.ZipFile
 import org.tensorflow.lite.examples.soundclassifier.databinding.ActivityViewBinding
-import java.io.BufferedReader
 import java.io.File
-import java.io.IOException
-import java.io.InputStreamReader
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
@@ -38,9 +37,7 @@ class ViewActivity : AppCompatActivity() {
     private lateinit var database: BirdDBHelper
     private lateinit var adapter: RecyclerOverviewListAdapter
     private lateinit var birdObservations: ArrayList<BirdObservation>
-    private lateinit var assetList: List<String>
-    private lateinit var labelList: List<String>
-    private lateinit var eBirdList: List<String>
+    private lateinit var species: SpeciesRegistry
     private lateinit var mContext: Context
 
     override fun onCreate(savedInstanceState: Bundle?) {
@@ -80,12 +77,12 @@ class ViewActivity : AppCompatActivity() {
             val editor=sharedPref.edit()
             if ((view as CompoundButton).isChecked) {
                 birdObservations.clear()
-                birdObservations.addAll(database.getAllBirdObservations(true).sortedByDescending { it.millis })
+                birdObservations.addAll(database.getAllBirdObservations(true, thresholds()).sortedByDescending { it.millis })
                 editor.putBoolean("view_detailed", true)
                 editor.apply()
             } else {
                 birdObservations.clear()
-                birdObservations.addAll(database.getAllBirdObservations(false).sortedByDescending { it.millis })
+                birdObservations.addAll(database.getAllBirdObservations(false, thresholds()).sortedByDescending { it.millis })
                 editor.putBoolean("view_detailed", false)
                 editor.apply()
             }
@@ -108,16 +105,14 @@ class ViewActivity : AppCompatActivity() {
             }
             true
         }
-        loadLabels(this)
-        loadAssetList(this)
-        loadEbirdList(this)
+        species = SpeciesRegistry.getInstance(this)
     }
 
     override fun onResume() {
         super.onResume()
         val sharedPref = PreferenceManager.getDefaultSharedPreferences(this)
         val isDetailedFilterActive = sharedPref.getBoolean("view_detailed", false)
-        birdObservations = ArrayList(database.getAllBirdObservations(isDetailedFilterActive).sortedByDescending { it.millis } )  //Conversion between Java ArrayList and Kotlin ArrayList
+        birdObservations = ArrayList(database.getAllBirdObservations(isDetailedFilterActive, thresholds()).sortedByDescending { it.millis } )  //Conversion between Java ArrayList and Kotlin ArrayList
 
         adapter = RecyclerOverviewListAdapter(applicationContext, birdObservations)
         binding.recyclerObservations.setAdapter(adapter)
@@ -126,11 +121,7 @@ class ViewActivity : AppCompatActivity() {
             RecyclerItemClickListener(baseContext, binding.recyclerObservations, object : RecyclerItemClickListener.OnItemClickListener {
                 override fun onItemClick(view: View?, position: Int) {
                     WavUtils.playWaveFile(mContext, adapter.getMillis(position))
-                    val url = if ( assetList[adapter.getSpeciesID(position)] != "NO_ASSET") {
-                        "https://macaulaylibrary.org/asset/" + assetList[adapter.getSpeciesID(position)] + "/embed"
-                    } else {
-                        "about:blank"
-                    }
+                    val url = species.getAssetUrl(adapter.getSpeciesID(position)) ?: "about:blank"
                     if (url == "about:blank"){
                         binding.webview.setVisibility(View.GONE)
                         binding.webview.loadUrl(url)
@@ -152,9 +143,9 @@ class ViewActivity : AppCompatActivity() {
                             binding.webview.loadUrl(url)
                             binding.webviewUrl.setText(url)
                             binding.webviewUrl.setVisibility(View.VISIBLE)
-                            binding.webviewName.setText(labelList[adapter.getSpeciesID(position)].split("_").last())
+                            binding.webviewName.setText(species.getCommonName(adapter.getSpeciesID(position)))
                             binding.webviewName.setVisibility(View.VISIBLE)
-                            binding.webviewLatinname.setText(labelList[adapter.getSpeciesID(position)].split("_").first())
+                            binding.webviewLatinname.setText(species.getScientificName(adapter.getSpeciesID(position)))
                             binding.webviewLatinname.setVisibility(View.VISIBLE)
                             binding.webviewReload.setVisibility(View.VISIBLE)
                             binding.webviewEbird.setVisibility(View.VISIBLE)
@@ -166,90 +157,31 @@ class ViewActivity : AppCompatActivity() {
                     }
                 }
 
-                override fun onLongItemClick(view: View?, position: Int) {}
+                override fun onLongItemClick(view: View?, position: Int) {
+                    //show observations which sound similar to the selected one, the first search loads all embeddings
+                    val id = adapter.getID(position)
+                    Thread {
+                        val similar = database.getSimilarObservations(id, 100, 0.5f)
+                        Handler(Looper.getMainLooper()).post {
+                            if (isFinishing) return@post
+                            if (similar.isEmpty()) {
+                                Toast.makeText(mContext, getString(R.string.no_similar), Toast.LENGTH_SHORT).show()
+                            } else {
+                                birdObservations.clear()
+                                birdObservations.addAll(similar)
+                                adapter.notifyDataSetChanged()
+                                Toast.makeText(mContext, getString(R.string.similar_found, similar.size), Toast.LENGTH_SHORT).show()
+                            }
+                        }
+                    }.start()
+                }
             })
         )
     }
 
 
-    /** Retrieve asset list from "assets" file */
-    private fun loadAssetList(context: Context) {
-
-        try {
-            val reader =
-                BufferedReader(InputStreamReader(context.assets.open("assets.txt")))  //TODO: Common definition for all classes
-            val wordList = mutableListOf<String>()
-            reader.useLines { lines ->
-                lines.forEach {
-                    wordList.add(it.trim())
-                }
-            }
-            assetList = wordList.map { it }
-        } catch (e: IOException) {
-            Log.e("ViewActivity", "Failed to read labels ${"assets.txt"}: ${e.message}")
-        }
-    }
-
-    /** Retrieve eBird taxonomy list from "taxo_code" file */
-    private fun loadEbirdList(context: Context) {
-
-        try {
-            val reader =
-                BufferedReader(InputStreamReader(context.assets.open("taxo_code.txt")))
-            val wordList = mutableListOf<String>()
-            reader.useLines { lines ->
-                lines.forEach {
-                    wordList.add(it.trim())
-                }
-            }
-            eBirdList = wordList.map { it }
-        } catch (e: IOException) {
-            Log.e("ViewActivity", "Failed to read labels ${"taxo_code.txt"}: ${e.message}")
-        }
-    }
-
-    /** Retrieve labels from "labels.txt" file */
-    private fun loadLabels(context: Context) { //TODO: Refactor
-        val localeList = context.resources.configuration.locales
-        val language = localeList.get(0).language
-        var filename = "labels"+"_${language}.txt"    // TODO: Common definition for all classes
-
-        //Check if file exists
-        val assetManager = context.assets // Replace 'assets' with actual AssetManager instance
-        try {
-            val mapList = assetManager.list("")?.toMutableList()
-
-            if (mapList != null) {
-                if (!mapList.contains(filename)) {
-                    filename = "labels"+"_en.txt"
-                }
-            }
-        } catch (ex: IOException) {
-            ex.printStackTrace()
-            filename = "labels"+"_en.txt"
-        }
-
-        try {
-            val reader =
-                BufferedReader(InputStreamReader(context.assets.open(filename)))
-            val wordList = mutableListOf<String>()
-            reader.useLines { lines ->
-                lines.forEach {
-                    wordList.add(it)
-                }
-            }
-            labelList = wordList.map { it.toTitleCase() }
-            Log.i("ViewActivity", "Label list entries: ${labelList.size}")
-        } catch (e: IOException) {
-            Log.e("ViewActivity", "Failed to read labels ${filename}: ${e.message}")
-        }
-    }
-
-    private fun String.toTitleCase() =
-        splitToSequence("_")
-            .map { it.replaceFirstChar { if (it.isLowerCase()) it.titlecase(Locale.ROOT) else it.toString() } }
-            .joinToString("_")
-            .trim()
+    /** Current detection thresholds of all species, also applied to the history */
+    private fun thresholds(): FloatArray = SpeciesThresholds.current(this)
 
     companion object {
 
@@ -279,7 +211,7 @@ class ViewActivity : AppCompatActivity() {
 
         val locationString = adapter.getLocation(position)
 
-        val shareString = dateString + ", " + timeString + ", " + labelList[id].replace("_",", ") + ", " + locationString +"\n\nGet whoBIRD on F-Droid"
+        val shareString = dateString + ", " + timeString + ", " + species.getScientificName(id) + ", " + species.getCommonName(id) + ", " + locationString +"\n\nGet whoBIRD on F-Droid"
 
         val shareIntent = Intent(Intent.ACTION_SEND)
         shareIntent.type = "text/plain"
@@ -290,7 +222,7 @@ class ViewActivity : AppCompatActivity() {
     fun ebird(view: View) {
         val position = binding.webviewShare.tag as Int
         val id = adapter.getSpeciesID(position)
-        startActivity(Intent(Intent.ACTION_VIEW, Uri.parse("https://ebird.org/species/"+eBirdList[id])))
+        startActivity(Intent(Intent.ACTION_VIEW, Uri.parse("https://ebird.org/species/"+species.getEBirdCode(id))))
     }
 
     override fun onCreateOptionsMenu(menu: Menu): Boolean {
@@ -301,6 +233,10 @@ class ViewActivity : AppCompatActivity() {
 
     override fun onOptionsItemSelected(item: MenuItem): Boolean {
         when (item.itemId) {
+            R.id.action_ltsa -> {
+                startActivity(Intent(this, LtsaActivity::class.java))
+                return true
+            }
             R.id.action_share_db -> {
                 val database = BirdDBHelper.getInstance(this)
                 val intent = Intent(Intent.ACTION_SEND)
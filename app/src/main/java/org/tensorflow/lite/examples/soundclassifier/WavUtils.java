@@ -6,6 +6,8 @@ import android.content.Context;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import java.io.File;
@@ -18,6 +20,7 @@ import java.nio.charset.StandardCharsets;
 
 public class WavUtils {
     public static final String TAG = "WavUtils";
+    private static final int DETECTION_WINDOW_MILLIS = 3000;
 
     public static void playWaveFile(Context context, long timestamp) {
         File path = new File(Environment.getExternalStoragePublicDirectory(DIRECTORY_MUSIC).getPath()+"/whoBIRD/" + timestamp +".wav");
@@ -31,9 +34,28 @@ public class WavUtils {
                 mp.reset();
                 mp.release();
             });
+        } else {
+            playSegment(context, timestamp);
         }
     }
 
+    /** Play the detection window from the continuous recording, if the detection was recorded */
+    private static void playSegment(Context context, long timestamp) {
+        RecordingSegment segment = BirdDBHelper.getInstance(context).getSegmentAt(timestamp);
+        if (segment == null || !new File(segment.getPath()).exists()) return;
+        Log.d(TAG,"Play "+segment.getPath());
+        MediaPlayer mediaPlayer = MediaPlayer.create(context, Uri.parse(segment.getPath()));
+        if (mediaPlayer == null) return;
+        mediaPlayer.setVolume(1, 1);
+        // The detection covers the model input window (3 s) before its timestamp
+        mediaPlayer.seekTo((int) Math.max(0, segment.getOffsetMillis(timestamp) - DETECTION_WINDOW_MILLIS));
+        mediaPlayer.start();
+        new Handler(Looper.getMainLooper()).postDelayed(() -> {
+            mediaPlayer.reset();
+            mediaPlayer.release();
+        }, DETECTION_WINDOW_MILLIS);
+    }
+
     public static void createWaveFile(long timestamp, FloatBuffer samplesBuffer, int sampleRate, int numChannels, int bytesPerSample) {
         try {
             byte[] samples = convertFloatBufferToWavBytes(samplesBuffer);
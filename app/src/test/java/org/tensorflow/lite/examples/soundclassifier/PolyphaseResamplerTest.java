@@ -0,0 +1,99 @@
+package org.tensorflow.lite.examples.soundclassifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Synthetic tones through the resampler, to the 48 kHz model rate from the usual capture rates */
+public class PolyphaseResamplerTest {
+    private static final int MODEL_RATE = 48000;
+    private static final double AMPLITUDE = 16000;
+    /** Samples skipped at the start of the output, covers the filter delay */
+    private static final int SETTLE = 1000;
+
+    @Test
+    public void outputCountsFitMaxOutput() {
+        for (int rate : new int[]{44100, 16000, 96000}) {
+            PolyphaseResampler resampler = new PolyphaseResampler(rate, MODEL_RATE);
+            long in = 0;
+            long out = 0;
+            // The block size of the capture thread and odd sizes, so the phase does not line up with the blocks
+            for (int block : new int[]{rate / 50, 1, 7, 441, 1000, 3}) {
+                short[] output = new short[resampler.maxOutput(block)];
+                for (int i = 0; i < 20; i++) {
+                    int count = resampler.process(new short[block], block, output);
+                    assertTrue(count <= resampler.maxOutput(block));
+                    in += block;
+                    out += count;
+                }
+            }
+            // Every input sample yields its share of output, up to the one pending
+            assertEquals((double) in * MODEL_RATE / rate, out, 1.0);
+            for (int capacity : new int[]{1, 960, 144000}) {
+                int n = resampler.maxInput(capacity);
+                assertTrue(resampler.maxOutput(n) <= capacity);
+            }
+        }
+    }
+
+    @Test
+    public void passbandLevel() {
+        for (int rate : new int[]{44100, 16000, 96000}) {
+            for (double frequency : new double[]{100, 1000, 0.3 * Math.min(rate, MODEL_RATE)}) {
+                short[] out = convert(rate, frequency);
+                double db = decibels(level(out, frequency));
+                assertEquals("Level of " + frequency + " Hz from " + rate + " Hz", 0, db, 0.1);
+            }
+        }
+    }
+
+    @Test
+    public void stopbandAttenuation() {
+        // Alias of a tone above the output Nyquist frequency
+        assertTrue(attenuation(96000, 30000, 18000) > 85);
+        // Images of the input spectrum around multiples of the input rate
+        assertTrue(attenuation(16000, 5000, 11000) > 85);
+        assertTrue(attenuation(44100, 15000, 18900) > 85);
+    }
+
+    /** Level at frequency in the output relative to the input tone at tone, in dB */
+    private static double attenuation(int rate, double tone, double frequency) {
+        short[] out = convert(rate, tone);
+        return -decibels(level(out, frequency));
+    }
+
+    /** One second of a sine at frequency, converted in the 20 ms blocks of the capture thread */
+    private static short[] convert(int rate, double frequency) {
+        PolyphaseResampler resampler = new PolyphaseResampler(rate, MODEL_RATE);
+        int block = rate / 50;
+        short[] in = new short[block];
+        short[] buffer = new short[resampler.maxOutput(block)];
+        short[] out = new short[resampler.maxOutput(rate + block)];
+        int count = 0;
+        for (int i = 0; i < rate + block; i += block) {
+            for (int j = 0; j < block; j++) in[j] = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * (i + j) / rate));
+            int n = resampler.process(in, block, buffer);
+            System.arraycopy(buffer, 0, out, count, n);
+            count += n;
+        }
+        return out;
+    }
+
+    /** Amplitude of frequency in the output after SETTLE, over a whole number of cycles of integer frequencies */
+    private static double level(short[] out, double frequency) {
+        double re = 0;
+        double im = 0;
+        int n = MODEL_RATE / 2;
+        for (int i = SETTLE; i < SETTLE + n; i++) {
+            double phase = 2 * Math.PI * frequency * i / MODEL_RATE;
+            re += out[i] * Math.cos(phase);
+            im += out[i] * Math.sin(phase);
+        }
+        return 2 * Math.hypot(re, im) / n;
+    }
+
+    private static double decibels(double amplitude) {
+        return 20 * Math.log10(amplitude / AMPLITUDE);
+    }
+}